@@ -0,0 +1,81 @@
+package com.hmdp.config;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import com.hmdp.mapper.BlogMapper;
+import com.hmdp.mapper.ShopMapper;
+import com.hmdp.mapper.UserMapper;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.RedisBloomFilter;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.util.List;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_HASH_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_USER_KEY;
+
+/***
+ * 布隆过滤器配置，每类数据一个过滤器，分别从 tb_shop、tb_blog、tb_user 中初始化
+ */
+@Configuration
+public class BloomFilterConfig {
+    /**
+     * 初始化时每次从数据库读取的id数量
+     */
+    private static final int ID_BATCH_SIZE = 1000;
+
+    @Value("${hmdp.bloom.enabled:false}")
+    private boolean enabled;
+
+    @Value("${hmdp.bloom.local-copy:false}")
+    private boolean localCopy;
+
+    @Bean
+    public RedisBloomFilter shopBloomFilter(StringRedisTemplate stringRedisTemplate, ShopMapper shopMapper, CacheClient cacheClient,
+                                            @Value("${hmdp.bloom.shop.expected-insertions:100000}") long expectedInsertions,
+                                            @Value("${hmdp.bloom.shop.fpp:0.01}") double fpp) {
+        RedisBloomFilter filter = new RedisBloomFilter("shop", stringRedisTemplate, idPager(shopMapper),
+                enabled, localCopy, expectedInsertions, fpp);
+        cacheClient.registerBloomFilter(CACHE_SHOP_KEY, filter);
+        cacheClient.registerBloomFilter(CACHE_SHOP_HASH_KEY, filter);
+        return filter;
+    }
+
+    @Bean
+    public RedisBloomFilter blogBloomFilter(StringRedisTemplate stringRedisTemplate, BlogMapper blogMapper,
+                                            @Value("${hmdp.bloom.blog.expected-insertions:100000}") long expectedInsertions,
+                                            @Value("${hmdp.bloom.blog.fpp:0.01}") double fpp) {
+        return new RedisBloomFilter("blog", stringRedisTemplate, idPager(blogMapper),
+                enabled, localCopy, expectedInsertions, fpp);
+    }
+
+    @Bean
+    public RedisBloomFilter userBloomFilter(StringRedisTemplate stringRedisTemplate, UserMapper userMapper, CacheClient cacheClient,
+                                            @Value("${hmdp.bloom.user.expected-insertions:100000}") long expectedInsertions,
+                                            @Value("${hmdp.bloom.user.fpp:0.01}") double fpp) {
+        RedisBloomFilter filter = new RedisBloomFilter("user", stringRedisTemplate, idPager(userMapper),
+                enabled, localCopy, expectedInsertions, fpp);
+        cacheClient.registerBloomFilter(CACHE_USER_KEY, filter);
+        return filter;
+    }
+
+    /***
+     * 按id升序分批查询 select id from table where id > ? order by id limit ?
+     */
+    private static <T> Function<Long, List<Long>> idPager(BaseMapper<T> mapper) {
+        return lastId -> mapper.selectObjs(new QueryWrapper<T>()
+                        .select("id")
+                        .gt("id", lastId)
+                        .orderByAsc("id")
+                        .last("LIMIT " + ID_BATCH_SIZE))
+                .stream()
+                .map(id -> ((Number) id).longValue())
+                .collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,75 @@
+package com.hmdp.config;
+
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CacheCodecs;
+import com.hmdp.utils.ExpiryPolicy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Configuration;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_USER_KEY;
+
+/***
+ * 按key前缀配置缓存的使用方式
+ */
+@Configuration
+public class CacheConfig {
+    @Resource
+    private CacheClient cacheClient;
+
+    /**
+     * 序列化方式：json、binary、deflate。滚动升级时先让所有节点升级到能读取新格式的版本，再切换写入的格式
+     */
+    @Value("${hmdp.cache.codec.shop:json}")
+    private String shopCodec;
+
+    @Value("${hmdp.cache.codec.user:json}")
+    private String userCodec;
+
+    /**
+     * 过期策略，单位秒：基础ttl、随机增加的最大时间、空值的ttl、过期之后仍然返回旧数据的时间
+     */
+    @Value("${hmdp.cache.expiry.shop.ttl-seconds:1800}")
+    private long shopTtlSeconds;
+
+    @Value("${hmdp.cache.expiry.shop.jitter-seconds:0}")
+    private long shopJitterSeconds;
+
+    @Value("${hmdp.cache.expiry.shop.null-ttl-seconds:120}")
+    private long shopNullTtlSeconds;
+
+    @Value("${hmdp.cache.expiry.shop.stale-seconds:0}")
+    private long shopStaleSeconds;
+
+    @Value("${hmdp.cache.expiry.user.ttl-seconds:1800}")
+    private long userTtlSeconds;
+
+    @Value("${hmdp.cache.expiry.user.jitter-seconds:0}")
+    private long userJitterSeconds;
+
+    @Value("${hmdp.cache.expiry.user.null-ttl-seconds:120}")
+    private long userNullTtlSeconds;
+
+    @Value("${hmdp.cache.expiry.user.stale-seconds:0}")
+    private long userStaleSeconds;
+
+    @PostConstruct
+    private void init() {
+        cacheClient.registerCodec(CACHE_SHOP_KEY, CacheCodecs.of(shopCodec));
+        cacheClient.registerCodec(CACHE_USER_KEY, CacheCodecs.of(userCodec));
+
+        cacheClient.registerExpiryPolicy(CACHE_SHOP_KEY, new ExpiryPolicy()
+                .setTtlSeconds(shopTtlSeconds)
+                .setJitterSeconds(shopJitterSeconds)
+                .setNullTtlSeconds(shopNullTtlSeconds)
+                .setStaleSeconds(shopStaleSeconds));
+        cacheClient.registerExpiryPolicy(CACHE_USER_KEY, new ExpiryPolicy()
+                .setTtlSeconds(userTtlSeconds)
+                .setJitterSeconds(userJitterSeconds)
+                .setNullTtlSeconds(userNullTtlSeconds)
+                .setStaleSeconds(userStaleSeconds));
+    }
+}
@@ -0,0 +1,55 @@
+package com.hmdp.config;
+
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisURI;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.codec.ByteArrayCodec;
+import io.lettuce.core.codec.RedisCodec;
+import io.lettuce.core.codec.StringCodec;
+import io.lettuce.core.resource.ClientResources;
+import org.springframework.boot.autoconfigure.data.redis.RedisProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+@Configuration
+public class RedisConfig {
+    /***
+     * redis发布订阅的监听容器，各个组件自行向其中注册自己关心的频道
+     */
+    @Bean
+    public RedisMessageListenerContainer redisMessageListenerContainer(RedisConnectionFactory connectionFactory) {
+        RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(connectionFactory);
+        return container;
+    }
+
+    /***
+     * 异步缓存使用的lettuce客户端，和spring data redis共用同一套线程资源，连接参数也使用同一份配置
+     */
+    @Bean(destroyMethod = "shutdown")
+    public RedisClient asyncRedisClient(ClientResources clientResources, RedisProperties properties) {
+        RedisURI uri = RedisURI.builder()
+                .withHost(properties.getHost())
+                .withPort(properties.getPort())
+                .withDatabase(properties.getDatabase())
+                .withSsl(properties.isSsl())
+                .build();
+        if (properties.getPassword() != null) {
+            uri.setPassword(properties.getPassword());
+        }
+        if (properties.getTimeout() != null) {
+            uri.setTimeout(properties.getTimeout());
+        }
+        return RedisClient.create(clientResources, uri);
+    }
+
+    /***
+     * key为字符串、value为字节数组的连接。lettuce的连接是线程安全的，所有异步命令复用这一个连接，命令自动流水线发送
+     */
+    @Bean(destroyMethod = "close")
+    public StatefulRedisConnection<String, byte[]> asyncRedisConnection(RedisClient asyncRedisClient) {
+        return asyncRedisClient.connect(RedisCodec.of(StringCodec.UTF8, ByteArrayCodec.INSTANCE));
+    }
+}
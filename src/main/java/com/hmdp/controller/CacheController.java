@@ -0,0 +1,39 @@
+package com.hmdp.controller;
+
+
+import com.hmdp.dto.Result;
+import com.hmdp.utils.CacheStats;
+import com.hmdp.utils.HotKeyDetector;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+import java.util.Map;
+
+/**
+ * <p>
+ * 缓存管理控制器
+ * </p>
+ */
+@RestController
+@RequestMapping("/cache")
+public class CacheController {
+
+    @Resource
+    private CacheStats cacheStats;
+
+    @Resource
+    private HotKeyDetector hotKeyDetector;
+
+    /**
+     * 查询缓存各层的命中情况
+     * @return 命中次数和命中率
+     */
+    @GetMapping("/stats")
+    public Result queryStats() {
+        Map<String, Object> stats = cacheStats.snapshot();
+        stats.put("hotKey", hotKeyDetector.snapshot());
+        return Result.ok(stats);
+    }
+}
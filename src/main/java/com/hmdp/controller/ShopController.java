@@ -10,6 +10,7 @@ import com.hmdp.utils.SystemConstants;
 import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.Resource;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * <p>
@@ -37,6 +38,16 @@ public class ShopController {
         return shopService.queryById(id);
     }
 
+    /**
+     * 查询商铺详情，包括商铺信息和优惠券，异步返回
+     * @param id 商铺id
+     * @return 商铺和优惠券
+     */
+    @GetMapping("/detail/{id}")
+    public CompletableFuture<Result> queryShopDetail(@PathVariable("id") Long id) {
+        return shopService.queryShopDetail(id);
+    }
+
     /**
      * 新增商铺信息
      * @param shop 商铺数据
@@ -44,10 +55,8 @@ public class ShopController {
      */
     @PostMapping
     public Result saveShop(@RequestBody Shop shop) {
-        // 写入数据库
-        shopService.save(shop);
-        // 返回店铺id
-        return Result.ok(shop.getId());
+        // 写入数据库，返回店铺id
+        return shopService.saveShop(shop);
     }
 
     /**
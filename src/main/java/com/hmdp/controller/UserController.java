@@ -59,9 +59,9 @@ public class UserController {
      * @return 无
      */
     @PostMapping("/logout")
-    public Result logout(){
-        // TODO 实现登出功能
-        return Result.fail("功能未完成");
+    public Result logout(@RequestHeader(value = "authorization", required = false) String token){
+        // 删除token，所有节点的本地缓存一起失效
+        return userService.logout(token);
     }
 
     @GetMapping("/me")
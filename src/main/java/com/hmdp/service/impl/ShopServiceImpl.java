@@ -1,5 +1,6 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.StrUtil;
 import cn.hutool.json.JSONObject;
@@ -7,10 +8,15 @@ import cn.hutool.json.JSONUtil;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
+import com.hmdp.entity.Voucher;
 import com.hmdp.mapper.ShopMapper;
+import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.service.IShopService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.AsyncCacheClient;
 import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CacheRebuildScheduler;
+import com.hmdp.utils.RedisBloomFilter;
 import com.hmdp.utils.RedisData;
 import com.hmdp.utils.SystemConstants;
 import org.springframework.data.geo.*;
@@ -18,15 +24,17 @@ import org.springframework.data.redis.connection.RedisGeoCommands;
 import org.springframework.data.redis.core.StringRedisTemplate;
 //import org.springframework.data.redis.domain.geo.GeoReference;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.Resource;
 
 import java.time.LocalDateTime;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executor;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.*;
 
@@ -47,6 +55,21 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     @Resource
     private CacheClient cacheClient;
 
+    @Resource
+    private AsyncCacheClient asyncCacheClient;
+
+    /**
+     * Shop queryWithLogicalExpire(Long id) 使用，和CacheClient共用重建线程池
+     */
+    @Resource
+    private CacheRebuildScheduler rebuildScheduler;
+
+    @Resource
+    private RedisBloomFilter shopBloomFilter;
+
+    @Resource
+    private VoucherMapper voucherMapper;
+
     /**
      * 通过缓存空值防止缓存穿透
      * */
@@ -63,6 +86,12 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         // 逻辑过期时间解决缓存击穿 需要使用单元测试提前将热点数据缓存到redis中
         // Shop shop = queryWithLogicalExpire(id);
         // Shop shop = cacheClient.queryWithLogicalExpire(CACHE_SHOP_KEY, id, Shop.class, id2 -> getById(id2), CACHE_SHOP_TTL, TimeUnit.MINUTES);
+
+        // 逻辑过期时间 + 提前刷新，热点key在过期之前就会概率性地在后台重建
+        // Shop shop = cacheClient.queryWithEarlyRefresh(CACHE_SHOP_KEY, id, Shop.class, id2 -> getById(id2), CACHE_SHOP_TTL, TimeUnit.MINUTES);
+
+        // hash形式缓存，销量、评论数等字段可以用 cacheClient.incrementHashField 原地修改，不需要删除整个缓存
+        // Shop shop = cacheClient.queryHashWithPassThrough(CACHE_SHOP_HASH_KEY, id, Shop.class, id2 -> getById(id2), CACHE_SHOP_TTL, TimeUnit.MINUTES);
         if (shop == null) {
             return Result.fail("店铺不存在");
         }
@@ -71,6 +100,30 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         return Result.ok(shop);
     }
 
+    /***
+     * 店铺详情聚合查询：店铺信息走异步缓存，优惠券列表在查询数据库的线程池中查询，两者并发执行，
+     * 返回future，等待期间不占用servlet线程
+     * @param id
+     * @return
+     */
+    @Override
+    public CompletableFuture<Result> queryShopDetail(Long id) {
+        // 1. 并发查询店铺和优惠券
+        CompletableFuture<Shop> shopFuture = asyncCacheClient.queryWithPassThroughAsync(
+                CACHE_SHOP_KEY, id, Shop.class, id2 -> getById(id2), CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        CompletableFuture<List<Voucher>> voucherFuture = asyncCacheClient.supplyAsync(() -> voucherMapper.queryVoucherOfShop(id));
+        // 2. 合并结果
+        return shopFuture.thenCombine(voucherFuture, (shop, vouchers) -> {
+            if (shop == null) {
+                return Result.fail("店铺不存在");
+            }
+            Map<String, Object> detail = new HashMap<>(4);
+            detail.put("shop", shop);
+            detail.put("vouchers", vouchers);
+            return Result.ok(detail);
+        });
+    }
+
     public Shop queryWithLogicalExpire(Long id) {
         String key = CACHE_SHOP_KEY + id;
         // 1. 从redis查询商铺缓存
@@ -98,17 +151,21 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         boolean isLock = tryLock(lockKey);
         // 6.2. 判断是否获取锁成功
         if (isLock) {
-            // 6.3. 获取成功，开启独立线程，实现缓存重建
-            CACHE_REBUILD_EXECUTOR.submit(() -> {
+            // 6.3. 获取成功，交给共用的重建线程池，实现缓存重建。队列已满或者重复提交时释放锁，返回旧数据
+            boolean submitted = rebuildScheduler.submit(key, () -> {
                 try{
                     //重建缓存
                     this.saveShop2Redis(id,20L);
-                }catch (Exception e){
+                }catch (InterruptedException e){
+                    Thread.currentThread().interrupt();
                     throw new RuntimeException(e);
                 }finally {
                     unlock(lockKey);
                 }
             });
+            if (!submitted) {
+                unlock(lockKey);
+            }
         }
 
         // 6.4. 获取失败，说明已经有其他线程获取锁并开始缓存重建，于是自己可以直接返回
@@ -116,11 +173,6 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         return shop;
     }
 
-    /***
-     * Shop queryWithLogicalExpire(Long id) 使用，使用线程池创建独立线程来进行过期数据重建
-     */
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
-
     /***
      * 使用互斥锁解决缓存击穿
      * @param id
@@ -251,10 +303,24 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         stringRedisTemplate.opsForValue().set(CACHE_SHOP_KEY + id, JSONUtil.toJsonStr(redisData));
     }
 
+    /**
+     * 新增商铺，同时把id加入布隆过滤器
+     * */
+    @Override
+    public Result saveShop(Shop shop) {
+        // 1. 写入数据库
+        save(shop);
+        // 2. 加入布隆过滤器，并删除之前可能缓存的空值
+        shopBloomFilter.put(shop.getId());
+        cacheClient.delete(CACHE_SHOP_KEY + shop.getId());
+        return Result.ok(shop.getId());
+    }
+
     /**
      * 通过先更新后删除缓存，缓解数据库和缓存数据不一致问题
      * */
     @Override
+    @Transactional
     public Result update(Shop shop) {
         // 处理缓存和数据库不一致性问题，先操作数据库，在删除缓存。
         // 不考虑用锁，因为不一致问题影响不大，更选择性能。缓存超时也能及时将不一致数据清除。
@@ -267,8 +333,9 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         // 1. 更新数据库
         updateById(shop);
 
-        // 2. 删除缓存
-        stringRedisTemplate.delete(CACHE_SHOP_KEY + id);
+        // 2. 删除缓存，同时通知所有节点删除本地缓存。事务提交之后才会真正删除，失败会重试，并延迟再删除一次
+        cacheClient.delete(CACHE_SHOP_KEY + id);
+        cacheClient.delete(CACHE_SHOP_HASH_KEY + id);
         return Result.ok();
     }
 
@@ -327,11 +394,21 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
             Distance distance = result.getDistance();
             distanceMap.put(shopIdStr, distance);
         });
-        // 5.根据id查询Shop
-        String idStr = StrUtil.join(",", ids);
-        List<Shop> shops = query().in("id", ids).last("ORDER BY FIELD(id," + idStr + ")").list();
-        for (Shop shop : shops) {
+        // 5.根据id批量查询Shop，先查缓存，未命中的再一次性查数据库，结果保持ids的顺序
+        List<Shop> cachedShops = cacheClient.queryBatchWithPassThrough(CACHE_SHOP_KEY, ids, Shop.class,
+                missIds -> listByIds(missIds).stream().collect(Collectors.toMap(Shop::getId, Function.identity())),
+                CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        // 使用hash形式缓存时，列表页只读取需要展示的字段
+        // List<Shop> cachedShops = cacheClient.queryHashFieldsBatch(CACHE_SHOP_HASH_KEY, ids, Shop.class,
+        //         Arrays.asList("id", "name", "typeId", "images", "area", "address", "x", "y", "avgPrice", "sold", "comments", "score"),
+        //         missIds -> listByIds(missIds).stream().collect(Collectors.toMap(Shop::getId, Function.identity())),
+        //         CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        List<Shop> shops = new ArrayList<>(cachedShops.size());
+        for (Shop cachedShop : cachedShops) {
+            // 缓存中的对象可能被本地缓存共享，复制一份再设置距离
+            Shop shop = BeanUtil.copyProperties(cachedShop, Shop.class);
             shop.setDistance(distanceMap.get(shop.getId().toString()).getValue());
+            shops.add(shop);
         }
         // 6.返回
         return Result.ok(shops);
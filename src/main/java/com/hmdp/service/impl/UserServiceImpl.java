@@ -4,6 +4,7 @@ import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.bean.copier.CopyOptions;
 import cn.hutool.core.lang.UUID;
 import cn.hutool.core.util.RandomUtil;
+import cn.hutool.core.util.StrUtil;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.dto.LoginFormDTO;
 import com.hmdp.dto.Result;
@@ -11,7 +12,10 @@ import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.User;
 import com.hmdp.mapper.UserMapper;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.RedisBloomFilter;
 import com.hmdp.utils.RegexUtils;
+import com.hmdp.utils.TokenCache;
 import org.springframework.beans.BeanUtils;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
@@ -40,6 +44,15 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private RedisBloomFilter userBloomFilter;
+
+    @Resource
+    private TokenCache tokenCache;
+
 
     @Override
     public Result sendCode(String phone, HttpSession session) {
@@ -124,6 +137,16 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
         return Result.ok(token);
     }
 
+    @Override
+    public Result logout(String token) {
+        if (StrUtil.isBlank(token)) {
+            return Result.fail("未登录");
+        }
+        // 删除redis中的token，并通知所有节点删除本地缓存的登录信息
+        tokenCache.revoke(token);
+        return Result.ok();
+    }
+
     private User createUserWithPhone(String phone) {
         // 1. 创建用户
         User user = new User();
@@ -132,6 +155,9 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
 
         // 2. 保存用户
         save(user); // mybatis-plus
+        // 3. 加入布隆过滤器，并删除之前可能缓存的空值
+        userBloomFilter.put(user.getId());
+        cacheClient.delete(CACHE_USER_KEY + user.getId());
         return user;
     }
 
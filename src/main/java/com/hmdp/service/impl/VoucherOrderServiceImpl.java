@@ -1,5 +1,6 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.bean.BeanUtil;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.entity.VoucherOrder;
@@ -7,29 +8,47 @@ import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
-import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.HotKeyDetector;
+import com.hmdp.utils.ILock;
+import com.hmdp.utils.IdGenerator;
+import com.hmdp.utils.RedisStreamConsumer;
+import com.hmdp.utils.RingBuffer;
+import com.hmdp.utils.SeckillPreheater;
 import com.hmdp.utils.SimpleRedisLock;
+import com.hmdp.utils.SoldOutRegistry;
+import com.hmdp.utils.TwoTierLockManager;
 import com.hmdp.utils.UserHolder;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.extern.slf4j.Slf4j;
 import org.redisson.api.RLock;
 import org.redisson.api.RedissonClient;
 import org.springframework.aop.framework.AopContext;
 import org.springframework.aop.framework.AopProxy;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.io.ClassPathResource;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamRecords;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
 import java.time.LocalDateTime;
-import java.util.Collections;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.*;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.*;
 
 /**
  * <p>
@@ -55,17 +74,81 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     private RedissonClient redissonClient;
 
     @Resource
-    private RedisIdWorker redisIdWorker;
+    private TwoTierLockManager twoTierLockManager;
+
+    /**
+     * 订单id生成器，hmdp.id.generator=snowflake 时使用本地计算的雪花算法，默认使用 RedisIdWorker
+     */
+    @Resource
+    private IdGenerator idGenerator;
+
+    @Resource
+    private HotKeyDetector hotKeyDetector;
+
+    @Resource
+    private SoldOutRegistry soldOutRegistry;
 
-    private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
+    @Resource
+    private SeckillPreheater seckillPreheater;
+
+    /**
+     * 秒杀脚本返回 {结果, 段号}
+     */
+    @SuppressWarnings("rawtypes")
+    private static final DefaultRedisScript<List> SECKILL_SCRIPT;
+    private static final DefaultRedisScript<Long> ROLLBACK_SCRIPT;
     static {
         SECKILL_SCRIPT = new DefaultRedisScript<>();
         SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
-        SECKILL_SCRIPT.setResultType(Long.class);
+        SECKILL_SCRIPT.setResultType(List.class);
+        ROLLBACK_SCRIPT = new DefaultRedisScript<>();
+        ROLLBACK_SCRIPT.setLocation(new ClassPathResource("seckill_rollback.lua"));
+        ROLLBACK_SCRIPT.setResultType(Long.class);
     }
 
-    // 秒杀订单阻塞队列
-    private BlockingQueue<VoucherOrder> orderTasks = new ArrayBlockingQueue<>(1024 * 1024);
+    /**
+     * 订单的处理方式：stream 从redis stream中消费，重启不丢失；memory 使用JVM内的阻塞队列
+     */
+    @Value("${hmdp.seckill.order-mode:stream}")
+    private String orderMode;
+
+    @Value("${hmdp.seckill.stream.consumer-name:}")
+    private String consumerName;
+
+    @Value("${hmdp.seckill.stream.consumers:4}")
+    private int consumers;
+
+    @Value("${hmdp.seckill.stream.block-millis:2000}")
+    private long blockMillis;
+
+    @Value("${hmdp.seckill.stream.claim-idle-millis:60000}")
+    private long claimIdleMillis;
+
+    @Value("${hmdp.seckill.stream.recover-interval-millis:30000}")
+    private long recoverIntervalMillis;
+
+    @Value("${hmdp.seckill.stream.max-deliveries:5}")
+    private int maxDeliveries;
+
+    /**
+     * 每次最多一起写入数据库的订单数，以及读到第一个订单之后最多再等待多久来凑够一批
+     */
+    @Value("${hmdp.seckill.batch.size:100}")
+    private int batchSize;
+
+    @Value("${hmdp.seckill.batch.linger-millis:20}")
+    private long lingerMillis;
+
+    private RedisStreamConsumer orderConsumer;
+
+    @Value("${hmdp.seckill.memory.ring-size:1048576}")
+    private int ringSize;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    // 内存模式的秒杀订单队列，预先分配的环形队列，执行lua脚本之前先占用位置
+    private RingBuffer<VoucherOrder> orderRing;
 
     // 异步处理线程池
     private static final  ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
@@ -73,44 +156,180 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     // 这个注解表示在当前类初始化后执行
     @PostConstruct
     private void init(){
-        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());
+        if (!isStreamMode()) {
+            orderRing = new RingBuffer<>(ringSize, meterRegistry, "seckill.order.queue");
+            SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());
+            return;
+        }
+        // 每个节点启动多个消费者，消费者名称固定，重启后继续处理自己没有确认的订单
+        orderConsumer = new RedisStreamConsumer(stringRedisTemplate, SECKILL_ORDER_STREAM, SECKILL_ORDER_GROUP,
+                SECKILL_ORDER_DEAD_STREAM, consumerName.isEmpty() ? hostName() : consumerName, consumers, batchSize,
+                blockMillis, lingerMillis, claimIdleMillis, recoverIntervalMillis, maxDeliveries,
+                this::handleOrderRecords);
+        orderConsumer.start();
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (orderConsumer != null) {
+            orderConsumer.stop();
+        }
+    }
+
+    private boolean isStreamMode() {
+        return "stream".equalsIgnoreCase(orderMode);
+    }
+
+    private static String hostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            return "localhost";
+        }
+    }
+
+    /***
+     * 处理stream中读取到的一批订单
+     * @return 创建成功(或者已经创建过)的订单对应的消息id，事务提交之后才会返回，之后再确认
+     */
+    private Collection<RecordId> handleOrderRecords(List<MapRecord<String, Object, Object>> records) {
+        Map<VoucherOrder, RecordId> recordIds = new IdentityHashMap<>(records.size());
+        List<VoucherOrder> orders = new ArrayList<>(records.size());
+        for (MapRecord<String, Object, Object> record : records) {
+            VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true);
+            recordIds.put(voucherOrder, record.getId());
+            orders.add(voucherOrder);
+        }
+        // 没有确认的订单留在pending list中，稍后重试
+        return handleVoucherOrders(orders).stream().map(recordIds::get).collect(Collectors.toList());
     }
 
     private class VoucherOrderHandler implements Runnable {
         @Override
         public void run() {
+            List<VoucherOrder> batch = new ArrayList<>(batchSize);
             while(true) {
-                // 1. 获取队列中的订单信息
+                // 1. 获取队列中的订单信息，读到第一个之后最多再等 lingerMillis，凑够一批
                 try {
-                    VoucherOrder voucherOrder = orderTasks.take();
-                    // 2. 创建订单
-                    handleVoucherOrder(voucherOrder);
+                    if (orderRing.drainTo(batch, batchSize, 1, TimeUnit.SECONDS) == 0) {
+                        continue;
+                    }
+                    long deadline = System.currentTimeMillis() + lingerMillis;
+                    while (batch.size() < batchSize) {
+                        long remain = deadline - System.currentTimeMillis();
+                        if (remain <= 0
+                                || orderRing.drainTo(batch, batchSize - batch.size(), remain, TimeUnit.MILLISECONDS) == 0) {
+                            break;
+                        }
+                    }
+                    // 2. 批量创建订单，放弃的位置不会出现在batch中
+                    if (!batch.isEmpty()) {
+                        handleVoucherOrders(batch);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
                 } catch (Exception e) {
                     log.error("处理订单异常", e);
+                } finally {
+                    batch.clear();
                 }
             }
         }
     }
 
-    private void handleVoucherOrder(VoucherOrder voucherOrder) {
+    /***
+     * 批量创建订单：一个事务中按优惠券汇总扣减库存，再一条语句插入所有订单。
+     * 批量写入失败(例如其中有重复的订单、库存不足)时回滚，再逐个创建
+     * @return 处理完成的订单(创建成功、重复或者库存不足)，其余的需要重试
+     */
+    private List<VoucherOrder> handleVoucherOrders(List<VoucherOrder> orders) {
+        // 1. 同一批中同一个用户对同一张券的重复订单只保留第一个，其余的直接算作处理完成
+        Map<String, VoucherOrder> unique = new LinkedHashMap<>(orders.size());
+        for (VoucherOrder order : orders) {
+            unique.putIfAbsent(order.getUserId() + ":" + order.getVoucherId(), order);
+        }
+        List<VoucherOrder> batch = new ArrayList<>(unique.values());
+        Set<VoucherOrder> batchSet = Collections.newSetFromMap(new IdentityHashMap<>());
+        batchSet.addAll(batch);
+        // 2. 批量写入
+        if (batch.size() > 1) {
+            try {
+                proxy.createVoucherOrders(batch);
+                return orders;
+            } catch (Exception e) {
+                log.warn("批量创建订单失败，逐个创建, size: {}, error: {}", batch.size(), e.getMessage());
+            }
+        }
+        // 3. 逐个创建
+        List<VoucherOrder> done = new ArrayList<>(orders.size());
+        for (VoucherOrder order : orders) {
+            if (!batchSet.contains(order)) {
+                done.add(order);
+                continue;
+            }
+            try {
+                if (handleVoucherOrder(order)) {
+                    done.add(order);
+                }
+            } catch (Exception e) {
+                log.error("处理订单异常, orderId: {}", order.getId(), e);
+            }
+        }
+        return done;
+    }
+
+    /***
+     * @return 是否处理完成，获取锁失败时返回false，stream中的订单稍后重试
+     */
+    private boolean handleVoucherOrder(VoucherOrder voucherOrder) {
         //1.获取用户
         Long userId = voucherOrder.getUserId();
-        // 2.创建锁对象
-        RLock redisLock = redissonClient.getLock("lock:order:" + userId);
-        // 3.尝试获取锁
-        boolean isLock = redisLock.tryLock();
+        // 2.创建锁对象，先获取本地锁，需要时再获取分布式锁 lock:order:userId
+        ILock lock = twoTierLockManager.getLock("order:" + userId);
+        // 3.尝试获取锁，不等待，分布式锁由看门狗续期
+        boolean isLock;
+        try {
+            isLock = lock.tryLock(0, -1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
         // 4.判断是否获得锁成功
         if (!isLock) {
             // 获取锁失败，直接返回失败或者重试
             log.error("不允许重复下单！");
-            return;
+            return false;
         }
         try {
             //注意：由于是spring的事务是放在threadLocal中，此时的是多线程，事务会失效
             proxy.createVoucherOrder(voucherOrder);
+            return true;
+        } catch (DuplicateKeyException e) {
+            // 唯一索引冲突，用户已经购买过了(或者是重复投递的订单)，事务已经回滚
+            log.error("用户已经购买过了, orderId: {}", voucherOrder.getId());
+            return true;
         } finally {
             // 释放锁
-            redisLock.unlock();
+            lock.unlock();
+        }
+    }
+
+    /***
+     * lua脚本返回值对应的提示：1 库存不足，2 重复下单，3 尚未开始，4 已经结束
+     */
+    private static String seckillFailMessage(int r) {
+        switch (r) {
+            case 1:
+                return "库存不足";
+            case 2:
+                return "不能重复下单";
+            case 3:
+                return "秒杀尚未开始！";
+            case 4:
+                return "秒杀已经结束！";
+            default:
+                return "系统繁忙，请稍后重试";
         }
     }
 
@@ -123,45 +342,128 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     public Result seckillVoucher(Long voucherId) {
         // 获取用户
         Long userId = UserHolder.getUser().getId();
-        long orderId = redisIdWorker.nextId("order");
-        // 1. 执行lua脚本
-        Long result = stringRedisTemplate.execute(
-                SECKILL_SCRIPT,
-                Collections.emptyList(),
-                voucherId.toString(), userId.toString(), String.valueOf(orderId)
-        );
-        int r = result.intValue();
-        // 2.判断结果是否为0
-        if (r != 0) {
-            // 2.1.不为0 ，代表没有购买资格
-            return Result.fail(r == 1 ? "库存不足" : "不能重复下单");
+        // 0.1. 本地已经标记售罄，直接返回，不访问redis
+        if (soldOutRegistry.isSoldOut(voucherId)) {
+            return Result.fail("库存不足");
+        }
+        // 库存在lua脚本中扣减，不能使用本地副本，这里只统计秒杀券key的访问次数，便于发现热点秒杀券
+        hotKeyDetector.record(SeckillPreheater.voucherKey(voucherId));
+        // 0.2. 内存模式先在队列中占一个位置，队列已满时直接拒绝，不会扣减redis中的库存
+        long sequence = -1;
+        if (!isStreamMode()) {
+            sequence = orderRing.tryNext();
+            if (sequence < 0) {
+                return Result.fail("系统繁忙，请稍后重试");
+            }
+        }
+        VoucherOrder voucherOrder = null;
+        try {
+            // 1. 执行lua脚本，判断秒杀时间、是否重复下单，并从一个分段中扣减库存
+            List<Long> result = executeSeckill(voucherId, userId);
+            int r = result.get(0).intValue();
+            // 2.判断结果是否为0
+            if (r != 0) {
+                // 2.1.不为0 ，代表没有购买资格。库存不足时标记售罄，通知所有节点
+                if (r == 1) {
+                    soldOutRegistry.markSoldOut(voucherId);
+                }
+                return Result.fail(seckillFailMessage(r));
+            }
+            // 2.2. 为0，代表有购买资格，这时才生成订单id，被脚本拒绝的请求不消耗id。生成失败时撤销扣减
+            int segment = result.get(1).intValue();
+            long orderId;
+            try {
+                orderId = idGenerator.nextId("order");
+            } catch (Exception e) {
+                log.error("生成订单id失败，撤销扣减的库存, voucherId: {}, userId: {}", voucherId, userId, e);
+                rollback(voucherId, userId, segment);
+                return Result.fail("系统繁忙，请稍后重试");
+            }
+            // stream模式下把订单写入stream，由消费者创建订单
+            if (isStreamMode()) {
+                if (!sendOrder(orderId, userId, voucherId, segment)) {
+                    return Result.fail("系统繁忙，请稍后重试");
+                }
+                return Result.ok(orderId);
+            }
+            // 内存模式，把下单信息保存到队列里
+            voucherOrder = new VoucherOrder();
+            // 2.3. 设置订单id
+            voucherOrder.setId(orderId);
+            // 2.4.用户id
+            voucherOrder.setUserId(userId);
+            // 2.5.代金券id
+            voucherOrder.setVoucherId(voucherId);
+            // 3.返回订单id
+            return Result.ok(orderId);
+        } finally {
+            // 2.6.发布到占用的位置，没有购买资格或者脚本执行失败时发布null，消费者会跳过
+            if (sequence >= 0) {
+                orderRing.publish(sequence, voucherOrder);
+            }
         }
-        // 2.2. 为0，代表有购买资格，把下单信息保存到阻塞队列里
-        VoucherOrder voucherOrder = new VoucherOrder();
-        // 2.3. 设置订单id
-        voucherOrder.setId(orderId);
-        // 2.4.用户id
-        voucherOrder.setUserId(userId);
-        // 2.5.代金券id
-        voucherOrder.setVoucherId(voucherId);
-        // 2.6.放入阻塞队列
-        orderTasks.add(voucherOrder);
-        // 3.返回订单id
-        return Result.ok(orderId);
     }
 
-    @Transactional
-    public void createVoucherOrder(VoucherOrder voucherOrder) {
-        Long userId = voucherOrder.getUserId();
-        // 5.1.查询订单
-        int count = query().eq("user_id", userId).eq("voucher_id", voucherOrder.getVoucherId()).count();
-        // 5.2.判断是否存在
-        if (count > 0) {
-            // 用户已经购买过了
-            log.error("用户已经购买过了");
-            return ;
+    /***
+     * 执行秒杀脚本。其他节点用更多的分段加载了这张券时脚本返回5和实际的分段数，补齐分段key之后重新执行一次
+     * @return {结果, 段号}
+     */
+    @SuppressWarnings("unchecked")
+    private List<Long> executeSeckill(Long voucherId, Long userId) {
+        String now = String.valueOf(System.currentTimeMillis());
+        List<Long> result = stringRedisTemplate.execute(SECKILL_SCRIPT, seckillPreheater.scriptKeys(voucherId),
+                userId.toString(), now);
+        if (result.get(0) == 5L) {
+            seckillPreheater.updateSegments(voucherId, result.get(1).intValue());
+            result = stringRedisTemplate.execute(SECKILL_SCRIPT, seckillPreheater.scriptKeys(voucherId),
+                    userId.toString(), now);
+        }
+        return result;
+    }
+
+    /***
+     * 把订单写入 stream.orders。stream和秒杀券的key不在同一个slot，不能在秒杀脚本中写入；
+     * 写入失败时撤销脚本中的扣减，用户可以重新下单
+     * @param segment 脚本扣减的分段
+     * @return 是否写入成功
+     */
+    private boolean sendOrder(long orderId, Long userId, Long voucherId, int segment) {
+        Map<String, String> order = new HashMap<>(4);
+        order.put("userId", userId.toString());
+        order.put("voucherId", voucherId.toString());
+        order.put("id", String.valueOf(orderId));
+        try {
+            stringRedisTemplate.opsForStream().add(StreamRecords.string(order).withStreamKey(SECKILL_ORDER_STREAM));
+            return true;
+        } catch (Exception e) {
+            log.error("写入订单失败，撤销扣减的库存, orderId: {}", orderId, e);
+        }
+        rollback(voucherId, userId, segment);
+        return false;
+    }
+
+    /***
+     * 撤销秒杀脚本中的扣减：归还分段的库存，删除用户的下单记录和售罄标记
+     * @param segment 脚本扣减的分段
+     */
+    private void rollback(Long voucherId, Long userId, int segment) {
+        try {
+            stringRedisTemplate.execute(ROLLBACK_SCRIPT,
+                    Arrays.asList(SeckillPreheater.voucherKey(voucherId), SeckillPreheater.orderKey(voucherId),
+                            SeckillPreheater.soldOutKey(voucherId), SeckillPreheater.stockKey(voucherId, segment)),
+                    userId.toString());
+        } catch (Exception e) {
+            // 这一件库存和用户的下单记录只能等秒杀结束后卸载
+            log.error("撤销扣减的库存失败, voucherId: {}, userId: {}, segment: {}", voucherId, userId, segment, e);
         }
+    }
 
+    /***
+     * 创建一个订单。一人一单由 (user_id, voucher_id) 唯一索引保证，重复时抛出 DuplicateKeyException 并回滚扣减的库存
+     * @param voucherOrder
+     */
+    @Transactional
+    public void createVoucherOrder(VoucherOrder voucherOrder) {
         // 6.扣减库存
         boolean success = seckillVoucherService.update()
                 .setSql("stock = stock - 1") // set stock = stock - 1
@@ -176,6 +478,32 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     }
 
 
+    /***
+     * 在一个事务中创建一批订单：按优惠券汇总数量，每张券执行一次 stock = stock - k，再用一条多行insert写入所有订单。
+     * 任何一张券库存不足或者任何一个订单重复都会抛出异常并整体回滚
+     * @param voucherOrders 同一批中不能有同一个用户对同一张券的多个订单
+     */
+    @Transactional
+    public void createVoucherOrders(List<VoucherOrder> voucherOrders) {
+        // 1.按优惠券汇总数量
+        Map<Long, Integer> counts = new TreeMap<>();
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            counts.merge(voucherOrder.getVoucherId(), 1, Integer::sum);
+        }
+        // 2.扣减库存，按优惠券id的顺序更新，多个消费者并发时不会死锁
+        for (Map.Entry<Long, Integer> entry : counts.entrySet()) {
+            boolean success = seckillVoucherService.update()
+                    .setSql("stock = stock - " + entry.getValue()) // set stock = stock - k
+                    .eq("voucher_id", entry.getKey()).ge("stock", entry.getValue()) // where id = ? and stock >= k
+                    .update();
+            if (!success) {
+                throw new IllegalStateException("库存不足, voucherId: " + entry.getKey());
+            }
+        }
+        // 3.多行插入订单
+        getBaseMapper().insertBatch(voucherOrders);
+    }
+
     /*@Transactional
     public Result createVoucherOrder(Long voucherId) {
         Long userId = UserHolder.getUser().getId();
@@ -200,7 +528,7 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         // 7.创建订单
         VoucherOrder voucherOrder = new VoucherOrder();
         // 7.1.订单id
-        long orderId = redisIdWorker.nextId("order");
+        long orderId = idGenerator.nextId("order");
         voucherOrder.setId(orderId);
         // 7.2.用户id
         voucherOrder.setUserId(userId);
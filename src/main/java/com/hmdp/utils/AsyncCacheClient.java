@@ -0,0 +1,245 @@
+package com.hmdp.utils;
+
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.api.async.RedisAsyncCommands;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.time.LocalDateTime;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import static com.hmdp.utils.CacheMetrics.*;
+/***
+ * CacheClient 的异步版本，所有方法立即返回 CompletableFuture，不阻塞调用线程。
+ * 读写redis使用lettuce的异步命令，查询数据库在一个有界的线程池中执行，线程池满了直接失败，不会拖垮调用方。
+ * 本地缓存、热点key副本、布隆过滤器、序列化方式都和 CacheClient 共用。
+ * 注意：redis返回之后的反序列化等回调在lettuce的IO线程中执行，回调里不能有阻塞操作
+ */
+@Slf4j
+@Component
+public class AsyncCacheClient {
+    private final CacheClient cacheClient;
+    private final LocalCache localCache;
+    private final HotKeyDetector hotKeyDetector;
+    private final CacheStats cacheStats;
+    private final CacheMetrics metrics;
+    private final RedisAsyncCommands<String, byte[]> commands;
+
+    /**
+     * 查询数据库的线程池，有界队列，满了之后拒绝
+     */
+    private final ThreadPoolExecutor dbExecutor;
+
+    /**
+     * 缓存未命中时的请求合并
+     */
+    private final SingleFlight singleFlight = new SingleFlight();
+
+    public AsyncCacheClient(CacheClient cacheClient, LocalCache localCache, HotKeyDetector hotKeyDetector,
+                            CacheStats cacheStats, CacheMetrics metrics,
+                            StatefulRedisConnection<String, byte[]> asyncRedisConnection,
+                            @Value("${hmdp.cache.async.db-threads:16}") int dbThreads,
+                            @Value("${hmdp.cache.async.queue-capacity:1024}") int queueCapacity) {
+        this.cacheClient = cacheClient;
+        this.localCache = localCache;
+        this.hotKeyDetector = hotKeyDetector;
+        this.cacheStats = cacheStats;
+        this.metrics = metrics;
+        this.commands = asyncRedisConnection.async();
+        AtomicInteger index = new AtomicInteger();
+        this.dbExecutor = new ThreadPoolExecutor(dbThreads, dbThreads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                r -> new Thread(r, "cache-db-" + index.incrementAndGet()),
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    @PreDestroy
+    private void destroy() {
+        dbExecutor.shutdown();
+    }
+
+    /***
+     * 在查询数据库的线程池中执行一段阻塞的逻辑，用于聚合接口中和缓存查询并发执行的其他查询
+     * @param supplier
+     * @return 线程池满了时返回异常结束的future
+     * @param <T>
+     */
+    public <T> CompletableFuture<T> supplyAsync(Supplier<T> supplier) {
+        try {
+            return CompletableFuture.supplyAsync(supplier, dbExecutor);
+        } catch (RejectedExecutionException e) {
+            CompletableFuture<T> future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+            return future;
+        }
+    }
+
+    /***
+     * queryWithPassThrough 的异步版本，使用缓存空值方案防止缓存穿透
+     * @param keyPrefix
+     * @param id
+     * @param type
+     * @param dbFallback 在查询数据库的线程池中执行
+     * @param time
+     * @param unit
+     * @return
+     * @param <R>
+     * @param <ID>
+     */
+    public <R, ID> CompletableFuture<R> queryWithPassThroughAsync(String keyPrefix, ID id, Class<R> type,
+                                                                  Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        String key = keyPrefix + id;
+        // 0. 记录访问，热点key优先读本地副本，再查本地缓存
+        hotKeyDetector.record(key);
+        R pinned = hotKeyDetector.getPinned(key, type);
+        if (pinned != null) {
+            metrics.recordRequest(keyPrefix, PASS_THROUGH, REPLICA_HIT);
+            return CompletableFuture.completedFuture(pinned);
+        }
+        R local = localCache.get(key, type);
+        if (local != null) {
+            metrics.recordRequest(keyPrefix, PASS_THROUGH, L1_HIT);
+            return CompletableFuture.completedFuture(local);
+        }
+        // 1. 布隆过滤器判断不存在，直接返回。本地副本不能确认时通过异步命令查询位图
+        return cacheClient.mightContainAsync(keyPrefix, id, commands).thenCompose(contains -> {
+            if (!contains) {
+                metrics.recordRequest(keyPrefix, PASS_THROUGH, BLOOM_REJECT);
+                return CompletableFuture.completedFuture(null);
+            }
+            return queryRedisAsync(keyPrefix, key, id, type, dbFallback, time, unit);
+        });
+    }
+
+    /***
+     * 异步查询redis，开启了stale-while-revalidate时同时查询剩余的过期时间，和 CacheClient.queryWithPassThrough 的判断一致
+     */
+    private <R, ID> CompletableFuture<R> queryRedisAsync(String keyPrefix, String key, ID id, Class<R> type,
+                                                         Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        ExpiryPolicy policy = cacheClient.expiryPolicy(key, time, unit);
+        long start = System.nanoTime();
+        CompletableFuture<byte[]> get = commands.get(key).toCompletableFuture();
+        CompletableFuture<Long> pttl = policy.getStaleSeconds() > 0
+                ? commands.pttl(key).toCompletableFuture()
+                : CompletableFuture.completedFuture(-1L);
+        return get.thenCompose(bytes -> pttl.thenCompose(ttl -> {
+            metrics.recordRedisRead(key, "get", start);
+            long ttlMillis = ttl == null ? -1 : ttl;
+            // 2. 命中
+            if (bytes != null && bytes.length > 0) {
+                R r = cacheClient.decode(key, bytes, type);
+                if (r != null) {
+                    cacheStats.recordL2Hit();
+                    // 2.1. 已经进入stale阶段，返回旧数据，刷新交给重建线程池
+                    if (policy.isStale(ttlMillis)) {
+                        metrics.recordRequest(keyPrefix, PASS_THROUGH, STALE);
+                        cacheClient.refreshAsync(key, id, type, dbFallback, time, unit, PASS_THROUGH);
+                        return CompletableFuture.completedFuture(r);
+                    }
+                    metrics.recordRequest(keyPrefix, PASS_THROUGH, HIT);
+                    localCache.put(key, r);
+                    hotKeyDetector.pinIfHot(key, r);
+                    return CompletableFuture.completedFuture(r);
+                }
+            } else if (bytes != null) {
+                // 3. 命中空值
+                cacheStats.recordL2NullHit();
+                metrics.recordRequest(keyPrefix, PASS_THROUGH, NULL_HIT);
+                return CompletableFuture.completedFuture(null);
+            }
+            // 4. 未命中，同一个key只查询一次数据库
+            cacheStats.recordL2Miss();
+            metrics.recordRequest(keyPrefix, PASS_THROUGH, MISS);
+            return singleFlight.executeAsync(key, () -> loadAndCacheAsync(key, id, dbFallback, time, unit));
+        }));
+    }
+
+    /***
+     * queryWithLogicalExpire 的异步版本，过期时返回旧数据，并交给共用的重建线程池获取互斥锁、重建缓存
+     * @param keyPrefix
+     * @param id
+     * @param type
+     * @param dbFallback
+     * @param time
+     * @param unit
+     * @return
+     * @param <R>
+     * @param <ID>
+     */
+    public <R, ID> CompletableFuture<R> queryWithLogicalExpireAsync(String keyPrefix, ID id, Class<R> type,
+                                                                    Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        String key = keyPrefix + id;
+        hotKeyDetector.record(key);
+        RedisData pinned = hotKeyDetector.getPinned(key, RedisData.class);
+        if (pinned != null) {
+            return CompletableFuture.completedFuture(checkLogicalExpire(keyPrefix, key, id, type, pinned, REPLICA_HIT,
+                    dbFallback, time, unit));
+        }
+        long start = System.nanoTime();
+        return commands.get(key).toCompletableFuture().thenApply(bytes -> {
+            metrics.recordRedisRead(key, "get", start);
+            if (bytes == null || bytes.length == 0) {
+                // 未命中，直接返回
+                metrics.recordRequest(keyPrefix, LOGICAL_EXPIRE, MISS);
+                return null;
+            }
+            RedisData redisData = cacheClient.decodeLogical(key, bytes, type);
+            if (redisData == null || redisData.getData() == null || redisData.getExpireTime() == null) {
+                metrics.recordRequest(keyPrefix, LOGICAL_EXPIRE, MISS);
+                return null;
+            }
+            hotKeyDetector.pinIfHot(key, redisData);
+            return checkLogicalExpire(keyPrefix, key, id, type, redisData, HIT, dbFallback, time, unit);
+        });
+    }
+
+    /***
+     * 判断逻辑过期时间，过期时把获取锁和重建交给重建线程池，当前回调不阻塞
+     */
+    private <R, ID> R checkLogicalExpire(String keyPrefix, String key, ID id, Class<R> type, RedisData redisData,
+                                         String result, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        R r = type.cast(redisData.getData());
+        if (redisData.getExpireTime().isAfter(LocalDateTime.now())) {
+            metrics.recordRequest(keyPrefix, LOGICAL_EXPIRE, result);
+            return r;
+        }
+        metrics.recordRequest(keyPrefix, LOGICAL_EXPIRE, STALE);
+        hotKeyDetector.unpin(key);
+        // 只是放入重建队列，不会阻塞
+        cacheClient.rebuildLogicalAsync(key, id, dbFallback, time, unit, LOGICAL_EXPIRE);
+        return r;
+    }
+
+    /***
+     * 在查询数据库的线程池中加载，再异步写回redis。数据库中不存在时缓存空值
+     */
+    private <R, ID> CompletableFuture<R> loadAndCacheAsync(String key, ID id, Function<ID, R> dbFallback,
+                                                           Long time, TimeUnit unit) {
+        return supplyAsync(() -> {
+            long start = System.nanoTime();
+            try {
+                return dbFallback.apply(id);
+            } finally {
+                metrics.recordDbLoad(key, PASS_THROUGH, start);
+            }
+        }).thenCompose(r -> {
+            // 和CacheClient使用同一个过期策略
+            ExpiryPolicy policy = cacheClient.expiryPolicy(key, time, unit);
+            if (r == null) {
+                return commands.setex(key, policy.nextNullTtlSeconds(), CacheClient.EMPTY)
+                        .toCompletableFuture().thenApply(ok -> (R) null);
+            }
+            return commands.setex(key, policy.redisTtlSeconds(policy.nextTtlSeconds()), cacheClient.encode(key, r))
+                    .toCompletableFuture().thenApply(ok -> {
+                        localCache.put(key, r);
+                        hotKeyDetector.pinIfHot(key, r);
+                        return r;
+                    });
+        });
+    }
+}
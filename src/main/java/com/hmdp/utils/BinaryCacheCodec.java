@@ -0,0 +1,385 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.convert.Convert;
+import cn.hutool.core.util.ClassUtil;
+import cn.hutool.json.JSONUtil;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/***
+ * 紧凑的二进制格式。格式为：格式标识 + 对象，对象为：字段数量 + (字段名 + 类型标识 + 值)*，
+ * 整数使用zigzag变长编码，时间使用秒和纳秒。按字段名匹配，新增、删除字段不影响旧数据的读取
+ */
+public class BinaryCacheCodec implements CacheCodec {
+    public static final byte FORMAT = 0x01;
+
+    private static final byte NULL = 0;
+    private static final byte STRING = 1;
+    private static final byte LONG = 2;
+    private static final byte INT = 3;
+    private static final byte DOUBLE = 4;
+    private static final byte TRUE = 5;
+    private static final byte FALSE = 6;
+    private static final byte DATE_TIME = 7;
+    private static final byte OBJECT = 8;
+    /**
+     * 不支持的类型(集合等)使用json字符串保存
+     */
+    private static final byte JSON = 9;
+
+    private static final Map<Class<?>, ClassInfo> CLASS_INFOS = new ConcurrentHashMap<>();
+
+    @Override
+    public byte format() {
+        return FORMAT;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        Writer writer = new Writer();
+        writer.writeByte(FORMAT);
+        writeObject(writer, value);
+        return writer.toByteArray();
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, Class<T> type) {
+        checkFormat(bytes);
+        return decodePayload(bytes, 1, type, null);
+    }
+
+    @Override
+    public <T> RedisData decodeLogical(byte[] bytes, Class<T> type) {
+        checkFormat(bytes);
+        return decodePayload(bytes, 1, RedisData.class, type);
+    }
+
+    /***
+     * 只序列化对象，不包含格式标识，给压缩格式使用
+     */
+    byte[] encodePayload(Object value) {
+        Writer writer = new Writer();
+        writeObject(writer, value);
+        return writer.toByteArray();
+    }
+
+    /***
+     * 反序列化不包含格式标识的数据
+     * @param offset 对象开始的位置
+     * @param nestedType 声明为Object的字段(例如RedisData.data)的实际类型
+     */
+    <T> T decodePayload(byte[] bytes, int offset, Class<T> type, Class<?> nestedType) {
+        Reader reader = new Reader(bytes, offset);
+        return type.cast(readObject(reader, type, nestedType));
+    }
+
+    private static void checkFormat(byte[] bytes) {
+        if (bytes.length == 0 || bytes[0] != FORMAT) {
+            throw new IllegalArgumentException("不是二进制缓存格式");
+        }
+    }
+
+    private static void writeObject(Writer writer, Object obj) {
+        ClassInfo info = classInfo(obj.getClass());
+        Object[] values = new Object[info.fields.length];
+        int count = 0;
+        for (int i = 0; i < info.fields.length; i++) {
+            values[i] = info.get(i, obj);
+            if (values[i] != null) {
+                count++;
+            }
+        }
+        writer.writeVarLong(count);
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != null) {
+                writer.writeBytes(info.names[i]);
+                writeValue(writer, values[i]);
+            }
+        }
+    }
+
+    private static void writeValue(Writer writer, Object value) {
+        if (value == null) {
+            writer.writeByte(NULL);
+        } else if (value instanceof String) {
+            writer.writeByte(STRING);
+            writer.writeBytes(((String) value).getBytes(StandardCharsets.UTF_8));
+        } else if (value instanceof Long) {
+            writer.writeByte(LONG);
+            writer.writeZigZag((Long) value);
+        } else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            writer.writeByte(INT);
+            writer.writeZigZag(((Number) value).longValue());
+        } else if (value instanceof Double || value instanceof Float) {
+            writer.writeByte(DOUBLE);
+            writer.writeLong(Double.doubleToLongBits(((Number) value).doubleValue()));
+        } else if (value instanceof Boolean) {
+            writer.writeByte((Boolean) value ? TRUE : FALSE);
+        } else if (value instanceof LocalDateTime) {
+            LocalDateTime time = (LocalDateTime) value;
+            writer.writeByte(DATE_TIME);
+            writer.writeZigZag(time.toEpochSecond(ZoneOffset.UTC));
+            writer.writeVarLong(time.getNano());
+        } else if (isBean(value.getClass())) {
+            writer.writeByte(OBJECT);
+            writeObject(writer, value);
+        } else {
+            writer.writeByte(JSON);
+            writer.writeBytes(JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static Object readObject(Reader reader, Class<?> type, Class<?> nestedType) {
+        ClassInfo info = type == null ? null : classInfo(type);
+        Object obj = info == null ? null : info.newInstance();
+        int count = (int) reader.readVarLong();
+        for (int i = 0, hint = 0; i < count; i++) {
+            int length = (int) reader.readVarLong();
+            // 字段通常按照相同的顺序写入，先和下一个字段比较，避免每次都创建字段名字符串
+            int index = info == null ? -1 : info.indexOf(reader.buf, reader.pos, length, hint);
+            reader.pos += length;
+            Field field = index < 0 ? null : info.fields[index];
+            Class<?> fieldType = field == null ? null : field.getType();
+            Object value = readValue(reader, fieldType, nestedType);
+            if (field != null && value != null) {
+                info.set(index, obj, adapt(value, fieldType));
+                hint = index + 1;
+            }
+        }
+        return obj;
+    }
+
+    private static Object readValue(Reader reader, Class<?> type, Class<?> nestedType) {
+        byte tag = reader.readByte();
+        switch (tag) {
+            case NULL:
+                return null;
+            case STRING:
+                return reader.readString();
+            case LONG:
+                return reader.readZigZag();
+            case INT:
+                return (int) reader.readZigZag();
+            case DOUBLE:
+                return Double.longBitsToDouble(reader.readLong());
+            case TRUE:
+                return Boolean.TRUE;
+            case FALSE:
+                return Boolean.FALSE;
+            case DATE_TIME:
+                long seconds = reader.readZigZag();
+                int nanos = (int) reader.readVarLong();
+                return LocalDateTime.ofEpochSecond(seconds, nanos, ZoneOffset.UTC);
+            case OBJECT:
+                // 声明为Object的字段使用调用者给出的实际类型，未知字段只读取不赋值
+                Class<?> objectType = type == null || type == Object.class ? nestedType : type;
+                return readObject(reader, objectType, null);
+            case JSON:
+                String json = reader.readString();
+                return type == null ? null : Convert.convert(type, JSONUtil.parse(json));
+            default:
+                throw new IllegalArgumentException("未知的类型标识: " + tag);
+        }
+    }
+
+    private static Object adapt(Object value, Class<?> type) {
+        if (ClassUtil.isAssignable(type, value.getClass())) {
+            return value;
+        }
+        return Convert.convert(type, value);
+    }
+
+    private static boolean isBean(Class<?> type) {
+        return !type.isArray() && !type.isEnum() && !type.isPrimitive()
+                && !type.getName().startsWith("java.")
+                && !Collection.class.isAssignableFrom(type) && !Map.class.isAssignableFrom(type);
+    }
+
+    private static ClassInfo classInfo(Class<?> type) {
+        return CLASS_INFOS.computeIfAbsent(type, ClassInfo::new);
+    }
+
+    /***
+     * 缓存类的构造方法和字段，避免每次反射查找
+     */
+    private static class ClassInfo {
+        private final Constructor<?> constructor;
+        private final Field[] fields;
+        private final byte[][] names;
+
+        private ClassInfo(Class<?> type) {
+            List<Field> list = new ArrayList<>();
+            for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    int modifiers = field.getModifiers();
+                    if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) || field.isSynthetic()) {
+                        continue;
+                    }
+                    field.setAccessible(true);
+                    list.add(field);
+                }
+            }
+            this.fields = list.toArray(new Field[0]);
+            this.names = new byte[fields.length][];
+            for (int i = 0; i < fields.length; i++) {
+                names[i] = fields[i].getName().getBytes(StandardCharsets.UTF_8);
+            }
+            try {
+                this.constructor = type.getDeclaredConstructor();
+                this.constructor.setAccessible(true);
+            } catch (NoSuchMethodException e) {
+                throw new IllegalArgumentException(type.getName() + " 缺少无参构造方法", e);
+            }
+        }
+
+        private Object newInstance() {
+            try {
+                return constructor.newInstance();
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private Object get(int index, Object obj) {
+            try {
+                return fields[index].get(obj);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private void set(int index, Object obj, Object value) {
+            try {
+                fields[index].set(obj, value);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private int indexOf(byte[] buf, int offset, int length, int hint) {
+            if (hint < names.length && matches(names[hint], buf, offset, length)) {
+                return hint;
+            }
+            for (int i = 0; i < names.length; i++) {
+                if (matches(names[i], buf, offset, length)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private static boolean matches(byte[] name, byte[] buf, int offset, int length) {
+            if (name.length != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (name[i] != buf[offset + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static class Writer {
+        private byte[] buf = new byte[128];
+        private int size;
+
+        private void ensure(int n) {
+            if (size + n > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length << 1, size + n));
+            }
+        }
+
+        private void writeByte(int b) {
+            ensure(1);
+            buf[size++] = (byte) b;
+        }
+
+        private void writeVarLong(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                buf[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buf[size++] = (byte) value;
+        }
+
+        private void writeZigZag(long value) {
+            writeVarLong((value << 1) ^ (value >> 63));
+        }
+
+        private void writeLong(long value) {
+            ensure(8);
+            for (int i = 7; i >= 0; i--) {
+                buf[size++] = (byte) (value >>> (i * 8));
+            }
+        }
+
+        /***
+         * 长度 + 内容
+         */
+        private void writeBytes(byte[] bytes) {
+            writeVarLong(bytes.length);
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buf, size, bytes.length);
+            size += bytes.length;
+        }
+
+        private byte[] toByteArray() {
+            return Arrays.copyOf(buf, size);
+        }
+    }
+
+    private static class Reader {
+        private final byte[] buf;
+        private int pos;
+
+        private Reader(byte[] buf, int pos) {
+            this.buf = buf;
+            this.pos = pos;
+        }
+
+        private byte readByte() {
+            return buf[pos++];
+        }
+
+        private long readVarLong() {
+            long result = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = buf[pos++];
+                result |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return result;
+                }
+            }
+        }
+
+        private long readZigZag() {
+            long value = readVarLong();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        private long readLong() {
+            long value = 0;
+            for (int i = 0; i < 8; i++) {
+                value = (value << 8) | (buf[pos++] & 0xFF);
+            }
+            return value;
+        }
+
+        private String readString() {
+            int length = (int) readVarLong();
+            String s = new String(buf, pos, length, StandardCharsets.UTF_8);
+            pos += length;
+            return s;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static com.hmdp.utils.RedisConstants.BLOOM_FILTER_CHANNEL;
+
+/***
+ * 管理所有的布隆过滤器：启动时初始化、定时刷新本地副本、定时重建，以及同步其他节点新增的id
+ */
+@Slf4j
+@Component
+public class BloomFilterManager implements ApplicationRunner {
+    private final List<RedisBloomFilter> filters;
+    private final StringRedisTemplate stringRedisTemplate;
+    private final RedisMessageListenerContainer listenerContainer;
+
+    public BloomFilterManager(List<RedisBloomFilter> filters, StringRedisTemplate stringRedisTemplate,
+                              RedisMessageListenerContainer listenerContainer) {
+        this.filters = filters;
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.listenerContainer = listenerContainer;
+    }
+
+    @PostConstruct
+    private void init() {
+        // 消息格式为 name:id
+        listenerContainer.addMessageListener((message, pattern) -> {
+            String body = new String(message.getBody(), StandardCharsets.UTF_8);
+            int index = body.lastIndexOf(':');
+            if (index < 0) {
+                return;
+            }
+            String name = body.substring(0, index);
+            String id = body.substring(index + 1);
+            for (RedisBloomFilter filter : filters) {
+                if (filter.getName().equals(name)) {
+                    filter.onRemotePut(id);
+                }
+            }
+        }, new ChannelTopic(BLOOM_FILTER_CHANNEL));
+    }
+
+    /***
+     * 启动时如果redis中还没有位图，就从数据库中初始化，否则直接加载
+     */
+    @Override
+    public void run(ApplicationArguments args) {
+        for (RedisBloomFilter filter : filters) {
+            if (!filter.isEnabled()) {
+                continue;
+            }
+            try {
+                if (filter.isInitialized()) {
+                    filter.refresh();
+                } else {
+                    rebuild(filter);
+                }
+            } catch (Exception e) {
+                // 初始化失败时布隆过滤器认为所有id都可能存在，不影响正常查询
+                log.error("初始化布隆过滤器失败, name: {}", filter.getName(), e);
+            }
+        }
+    }
+
+    /***
+     * 定时刷新meta和本地副本
+     */
+    @Scheduled(fixedDelayString = "${hmdp.bloom.refresh-interval-millis:60000}")
+    public void refreshAll() {
+        for (RedisBloomFilter filter : filters) {
+            try {
+                filter.refresh();
+            } catch (Exception e) {
+                log.error("刷新布隆过滤器失败, name: {}", filter.getName(), e);
+            }
+        }
+    }
+
+    /***
+     * 定时重建，清除已经删除的数据，并根据数据量重新计算位图大小
+     */
+    @Scheduled(cron = "${hmdp.bloom.rebuild-cron:0 0 4 * * ?}")
+    public void rebuildAll() {
+        for (RedisBloomFilter filter : filters) {
+            if (!filter.isEnabled()) {
+                continue;
+            }
+            try {
+                rebuild(filter);
+            } catch (Exception e) {
+                log.error("重建布隆过滤器失败, name: {}", filter.getName(), e);
+            }
+        }
+    }
+
+    /***
+     * 多个节点只需要一个节点重建
+     */
+    private void rebuild(RedisBloomFilter filter) {
+        SimpleRedisLock lock = new SimpleRedisLock("bloom:" + filter.getName(), stringRedisTemplate);
+        if (!lock.tryLock(600)) {
+            return;
+        }
+        try {
+            filter.rebuild();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -1,32 +1,176 @@
 package com.hmdp.utils;
 
+import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.bean.copier.CopyOptions;
+import cn.hutool.core.date.LocalDateTimeUtil;
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
-import com.hmdp.entity.Shop;
+import io.lettuce.core.api.async.RedisAsyncCommands;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Component;
 
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
+import java.util.stream.Collectors;
 
+import static com.hmdp.utils.CacheMetrics.*;
 import static com.hmdp.utils.RedisConstants.*;
 
 /***
  * redis缓存工具类，使用了泛型和函数式编程
  */
+@Slf4j
 @Component
 public class CacheClient {
     private final StringRedisTemplate stringRedisTemplate;
 
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
+    private final LocalCache localCache;
 
-    public CacheClient(StringRedisTemplate stringRedisTemplate) {
+    private final CacheStats cacheStats;
+
+    private final HotKeyDetector hotKeyDetector;
+
+    private final CacheMetrics metrics;
+
+    private final CacheInvalidator cacheInvalidator;
+
+    private final CacheRebuildScheduler rebuildScheduler;
+
+    /**
+     * 各个key前缀对应的布隆过滤器，没有注册的前缀不做判断
+     */
+    private final Map<String, RedisBloomFilter> bloomFilters = new ConcurrentHashMap<>();
+
+    /**
+     * 各个key前缀使用的序列化方式，没有注册的前缀使用json
+     */
+    private final Map<String, CacheCodec> codecs = new ConcurrentHashMap<>();
+
+    /**
+     * 各个key前缀的过期策略，没有注册的前缀使用调用时传入的过期时间，不加随机值
+     */
+    private final Map<String, ExpiryPolicy> expiryPolicies = new ConcurrentHashMap<>();
+
+    /**
+     * 缓存的空值
+     */
+    static final byte[] EMPTY = new byte[0];
+
+    /**
+     * 缓存未命中时的请求合并
+     */
+    private final SingleFlight singleFlight = new SingleFlight();
+    /**
+     * 等待其他线程重建缓存的最长时间
+     */
+    private static final long CACHE_REBUILD_WAIT_MILLIS = 3000L;
+    /**
+     * 获取互斥锁失败后的重试次数和间隔
+     */
+    private static final int LOCK_RETRY_TIMES = 20;
+    private static final long LOCK_RETRY_INTERVAL_MILLIS = 50L;
+
+    /**
+     * 提前刷新的系数，大于1更倾向于提前刷新
+     */
+    private static final double EARLY_REFRESH_BETA = 1.0;
+    /**
+     * 还没有记录重建耗时的时候使用的默认值
+     */
+    private static final long DEFAULT_REBUILD_COST_MILLIS = 100L;
+
+    /**
+     * hash缓存中的标识字段，1 表示有数据，0 表示缓存的空值，不存在表示未命中
+     */
+    private static final String HASH_MARKER = "_";
+    private static final String HASH_PRESENT = "1";
+    private static final String HASH_NULL = "0";
+
+    private static final DefaultRedisScript<Long> HASH_UPDATE_SCRIPT;
+    private static final DefaultRedisScript<Long> HASH_INCR_SCRIPT;
+    static {
+        HASH_UPDATE_SCRIPT = new DefaultRedisScript<>();
+        HASH_UPDATE_SCRIPT.setLocation(new ClassPathResource("hash_update.lua"));
+        HASH_UPDATE_SCRIPT.setResultType(Long.class);
+        HASH_INCR_SCRIPT = new DefaultRedisScript<>();
+        HASH_INCR_SCRIPT.setLocation(new ClassPathResource("hash_incr.lua"));
+        HASH_INCR_SCRIPT.setResultType(Long.class);
+    }
+
+    /**
+     * 对象和hash之间转换时，字段值都转为字符串，null字段不写入。时间使用 yyyy-MM-dd HH:mm:ss 格式，读取时可以直接解析
+     */
+    private static final CopyOptions HASH_COPY_OPTIONS = CopyOptions.create()
+            .setIgnoreNullValue(true)
+            .setFieldValueEditor((fieldName, fieldValue) -> hashValue(fieldValue));
+
+    public CacheClient(StringRedisTemplate stringRedisTemplate, LocalCache localCache, CacheStats cacheStats,
+                       HotKeyDetector hotKeyDetector, CacheMetrics metrics, CacheInvalidator cacheInvalidator,
+                       CacheRebuildScheduler rebuildScheduler) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.localCache = localCache;
+        this.cacheStats = cacheStats;
+        this.hotKeyDetector = hotKeyDetector;
+        this.metrics = metrics;
+        this.cacheInvalidator = cacheInvalidator;
+        this.rebuildScheduler = rebuildScheduler;
+    }
+
+    /***
+     * 为某个key前缀注册布隆过滤器，查询redis和数据库之前先判断id是否可能存在
+     * @param keyPrefix
+     * @param filter
+     */
+    public void registerBloomFilter(String keyPrefix, RedisBloomFilter filter) {
+        bloomFilters.put(keyPrefix, filter);
+    }
+
+    /***
+     * 根据布隆过滤器判断id是否可能存在，没有注册布隆过滤器时返回true
+     * @param keyPrefix
+     * @param id
+     * @return
+     */
+    public boolean mightContain(String keyPrefix, Object id) {
+        RedisBloomFilter filter = bloomFilters.get(keyPrefix);
+        return filter == null || filter.mightContain(id);
+    }
+
+    /***
+     * mightContain 的异步版本，供 AsyncCacheClient 使用，查询位图时不阻塞调用线程
+     */
+    CompletableFuture<Boolean> mightContainAsync(String keyPrefix, Object id,
+                                                 RedisAsyncCommands<String, byte[]> commands) {
+        RedisBloomFilter filter = bloomFilters.get(keyPrefix);
+        return filter == null ? CompletableFuture.completedFuture(true) : filter.mightContainAsync(id, commands);
+    }
+
+    /***
+     * 为某个key前缀指定序列化方式，只影响写入，读取时根据数据的格式标识自动选择
+     * @param keyPrefix
+     * @param codec
+     */
+    public void registerCodec(String keyPrefix, CacheCodec codec) {
+        codecs.put(keyPrefix, codec);
+    }
+
+    /***
+     * 为某个key前缀指定过期策略，之后这个前缀的所有写入(包括空值和逻辑过期)都使用这个策略，调用时传入的过期时间不再生效
+     * @param keyPrefix
+     * @param policy
+     */
+    public void registerExpiryPolicy(String keyPrefix, ExpiryPolicy policy) {
+        expiryPolicies.put(keyPrefix, policy);
     }
 
     /***
@@ -37,7 +181,17 @@ public class CacheClient {
      * @param unit
      */
     public void set(String key, Object value, Long time, TimeUnit unit) {
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value), time, unit);
+        ExpiryPolicy policy = expiryPolicy(key, time, unit);
+        setRaw(key, encode(key, value), policy.redisTtlSeconds(policy.nextTtlSeconds()));
+    }
+
+    /***
+     * 删除缓存，同时通知所有节点删除本地缓存。数据更新之后调用。
+     * 交给失效管道异步执行：在事务中调用时事务提交后才删除，失败会重试，并且会延迟再删除一次
+     * @param key
+     */
+    public void delete(String key) {
+        cacheInvalidator.invalidate(key);
     }
 
     /***
@@ -48,11 +202,23 @@ public class CacheClient {
      * @param unit
      */
     public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit) {
-        // 设置逻辑过期时间
+        setWithLogicalExpire(key, value, time, unit, null);
+    }
+
+    /***
+     * @param rebuildCost 查询数据库重建缓存的耗时，毫秒，用于提前刷新
+     */
+    private void setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit, Long rebuildCost) {
+        // 设置逻辑过期时间，同一批写入的key逻辑过期时间也要错开
+        ExpiryPolicy policy = expiryPolicy(key, time, unit);
+        long ttlSeconds = policy.nextTtlSeconds();
         RedisData redisData = new RedisData();
         redisData.setData(value);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
+        redisData.setExpireTime(LocalDateTime.now().plusSeconds(ttlSeconds));
+        redisData.setRebuildCost(rebuildCost);
+        // 逻辑过期的数据在redis中永不过期，queryWithLogicalExpire 未命中时不会查询数据库
+        setRaw(key, encode(key, redisData), 0);
+        hotKeyDetector.unpin(key);
     }
 
     /***
@@ -70,37 +236,427 @@ public class CacheClient {
     public <R, ID> R queryWithPassThrough(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback,
                                           Long time, TimeUnit unit) {
         String key = keyPrefix + id;
-        // 1. 从redis查询商铺缓存
-        String json = stringRedisTemplate.opsForValue().get(key);
-
-        // 2. 判断是否缓存是否命中
-        if (StrUtil.isNotBlank(json)) { // isNotBlank == is not " " and null
-            // 3. 若命中，直接返回
-            return JSONUtil.toBean(json, type);
+        // 0. 记录访问，热点key优先读本地副本，再查本地缓存
+        hotKeyDetector.record(key);
+        R pinned = hotKeyDetector.getPinned(key, type);
+        if (pinned != null) {
+            metrics.recordRequest(keyPrefix, PASS_THROUGH, REPLICA_HIT);
+            return pinned;
+        }
+        R local = localCache.get(key, type);
+        if (local != null) {
+            metrics.recordRequest(keyPrefix, PASS_THROUGH, L1_HIT);
+            return local;
         }
+        // 布隆过滤器判断不存在，直接返回，不再访问redis和数据库
+        if (!mightContain(keyPrefix, id)) {
+            metrics.recordRequest(keyPrefix, PASS_THROUGH, BLOOM_REJECT);
+            return null;
+        }
+        // 1. 从redis查询商铺缓存，开启了stale-while-revalidate时同时查询剩余的过期时间
+        ExpiryPolicy policy = expiryPolicy(key, time, unit);
+        RawEntry entry = getRawEntry(key, policy.getStaleSeconds() > 0);
+        byte[] bytes = entry.bytes;
 
-        // 如果缓存的是空值
-        if (json != null) { // 等价于 "".equals(shopJson) 这里才是判断缓存空值的地方，因为缓存的空值是""
+        // 2. 判断是否缓存是否命中
+        if (bytes != null && bytes.length > 0) {
+            // 3. 若命中，写入本地缓存后返回。无法解析的格式当作未命中
+            R r = decode(key, bytes, type);
+            if (r != null) {
+                cacheStats.recordL2Hit();
+                // 3.1. 已经进入stale阶段，返回旧数据并在后台刷新
+                if (policy.isStale(entry.ttlMillis)) {
+                    metrics.recordRequest(keyPrefix, PASS_THROUGH, STALE);
+                    refreshAsync(key, id, type, dbFallback, time, unit, PASS_THROUGH);
+                    return r;
+                }
+                metrics.recordRequest(keyPrefix, PASS_THROUGH, HIT);
+                localCache.put(key, r);
+                hotKeyDetector.pinIfHot(key, r);
+                return r;
+            }
+        } else if (bytes != null) { // 这里才是判断缓存空值的地方，因为缓存的空值是""
             // 返回错误信息
+            cacheStats.recordL2NullHit();
+            metrics.recordRequest(keyPrefix, PASS_THROUGH, NULL_HIT);
             return null;
         }
+        cacheStats.recordL2Miss();
+        metrics.recordRequest(keyPrefix, PASS_THROUGH, MISS);
 
-        // 4. 若缓存未命中，则根据id查询数据库
+        // 4. 若缓存未命中，则根据id查询数据库，同一个JVM中同一个key的并发请求只查询一次
         //R r = getById(id); 这句不能执行，因为使用了泛型，所以将查数据库的逻辑交给调用者，让调用者传入一段代码进来
-        R r = dbFallback.apply(id);
+        // 5. 数据库不存在时缓存空值，防止缓存穿透；存在则写入redis和本地缓存
+        return singleFlight.execute(key, () -> loadAndCache(key, id, type, dbFallback, time, unit, PASS_THROUGH),
+                CACHE_REBUILD_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+    }
 
-        // 5. 数据库不存在，返回错误
-        if (r == null) {
-            // 防止缓存穿透，使用缓存空值的方案
-            stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
+    /***
+     * 批量查询，使用缓存空值方案防止缓存穿透。先用一次MGET查询redis，只把未命中的id交给数据库批量查询，
+     * 再用一次pipeline把查到的数据(包括空值)写回redis，原本N次往返变为两次
+     * @param keyPrefix
+     * @param ids
+     * @param type
+     * @param dbFallback 根据未命中的id批量查询数据库，返回 id -> 对象 的映射，不存在的id不放入映射中即可
+     * @param time
+     * @param unit
+     * @return 按照ids的顺序返回，不存在的数据会被跳过
+     * @param <R>
+     * @param <ID>
+     */
+    public <R, ID> List<R> queryBatchWithPassThrough(String keyPrefix, Collection<ID> ids, Class<R> type,
+                                                     Function<Collection<ID>, Map<ID, R>> dbFallback,
+                                                     Long time, TimeUnit unit) {
+        if (ids == null || ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+        // 1. 去重，并保持原有顺序
+        List<ID> idList = new ArrayList<>(new LinkedHashSet<>(ids));
+        Map<ID, R> found = new HashMap<>(idList.size());
+
+        // 2. 先查热点key的本地副本和本地缓存
+        List<ID> remoteIds = new ArrayList<>(idList.size());
+        for (ID id : idList) {
+            String key = keyPrefix + id;
+            hotKeyDetector.record(key);
+            R local = hotKeyDetector.getPinned(key, type);
+            if (local == null) {
+                local = localCache.get(key, type);
+            }
+            if (local != null) {
+                metrics.recordRequest(keyPrefix, BATCH, L1_HIT);
+                found.put(id, local);
+            } else if (mightContain(keyPrefix, id)) {
+                remoteIds.add(id);
+            } else {
+                // 布隆过滤器判断不存在的id直接跳过
+                metrics.recordRequest(keyPrefix, BATCH, BLOOM_REJECT);
+            }
+        }
+
+        // 3. 一次MGET查询redis
+        List<ID> missIds = new ArrayList<>();
+        if (!remoteIds.isEmpty()) {
+            List<String> keys = remoteIds.stream().map(id -> keyPrefix + id).collect(Collectors.toList());
+            List<byte[]> values = multiGetRaw(keys);
+            for (int i = 0; i < remoteIds.size(); i++) {
+                ID id = remoteIds.get(i);
+                byte[] bytes = values == null ? null : values.get(i);
+                R r = bytes != null && bytes.length > 0 ? decode(keys.get(i), bytes, type) : null;
+                if (r != null) {
+                    // 3.1. 命中
+                    cacheStats.recordL2Hit();
+                    metrics.recordRequest(keyPrefix, BATCH, HIT);
+                    localCache.put(keyPrefix + id, r);
+                    hotKeyDetector.pinIfHot(keyPrefix + id, r);
+                    found.put(id, r);
+                } else if (bytes != null && bytes.length == 0) {
+                    // 3.2. 命中空值
+                    cacheStats.recordL2NullHit();
+                    metrics.recordRequest(keyPrefix, BATCH, NULL_HIT);
+                } else {
+                    // 3.3. 未命中
+                    cacheStats.recordL2Miss();
+                    metrics.recordRequest(keyPrefix, BATCH, MISS);
+                    missIds.add(id);
+                }
+            }
+        }
+
+        // 4. 未命中的id一次性查询数据库，并用pipeline写回redis
+        if (!missIds.isEmpty()) {
+            long start = System.nanoTime();
+            Map<ID, R> loaded = dbFallback.apply(missIds);
+            metrics.recordDbLoad(keyPrefix, BATCH, start);
+            Map<ID, R> dbResult = loaded == null ? Collections.emptyMap() : loaded;
+            // 每个key单独计算随机的过期时间，同一批写入的key不会同时过期
+            ExpiryPolicy policy = expiryPolicy(keyPrefix, time, unit);
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (ID id : missIds) {
+                    R r = dbResult.get(id);
+                    if (r == null) {
+                        // 数据库中也不存在，缓存空值
+                        connection.setEx(rawKey(keyPrefix + id), policy.nextNullTtlSeconds(), EMPTY);
+                    } else {
+                        connection.setEx(rawKey(keyPrefix + id), policy.redisTtlSeconds(policy.nextTtlSeconds()),
+                                encode(keyPrefix, r));
+                    }
+                }
+                return null;
+            });
+            for (ID id : missIds) {
+                R r = dbResult.get(id);
+                if (r != null) {
+                    localCache.put(keyPrefix + id, r);
+                    hotKeyDetector.pinIfHot(keyPrefix + id, r);
+                    found.put(id, r);
+                }
+            }
+        }
+
+        // 5. 按照原有顺序返回
+        List<R> result = new ArrayList<>(idList.size());
+        for (ID id : idList) {
+            R r = found.get(id);
+            if (r != null) {
+                result.add(r);
+            }
+        }
+        return result;
+    }
+
+    /***
+     * 以hash的形式缓存对象，每个字段单独存储，之后可以只更新或者只读取其中的部分字段。
+     * 同一个对象不要同时使用 set 和 setHash 缓存，两种格式使用不同的key前缀
+     * @param key
+     * @param value 为null时缓存空值
+     * @param time
+     * @param unit
+     */
+    public void setHash(String key, Object value, Long time, TimeUnit unit) {
+        ExpiryPolicy policy = expiryPolicy(key, time, unit);
+        Map<String, String> hash = toHash(value);
+        long ttlSeconds = value == null ? policy.nextNullTtlSeconds() : policy.redisTtlSeconds(policy.nextTtlSeconds());
+        Map<byte[], byte[]> rawHash = new HashMap<>(hash.size());
+        hash.forEach((field, fieldValue) -> rawHash.put(rawKey(field), rawKey(fieldValue)));
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            // 先删除旧的hash，旧数据中有、新数据中为null的字段不会残留
+            connection.del(rawKey(key));
+            connection.hMSet(rawKey(key), rawHash);
+            connection.expire(rawKey(key), ttlSeconds);
+            return null;
+        });
+    }
+
+    /***
+     * hash形式缓存的查询，使用缓存空值方案防止缓存穿透。
+     * 计数之类的字段会被 incrementHashField 原地修改，所以不使用本地缓存和热点key副本，每次都读redis
+     * @param keyPrefix
+     * @param id
+     * @param type
+     * @param dbFallback
+     * @param time
+     * @param unit
+     * @return
+     * @param <R>
+     * @param <ID>
+     */
+    public <R, ID> R queryHashWithPassThrough(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback,
+                                              Long time, TimeUnit unit) {
+        String key = keyPrefix + id;
+        hotKeyDetector.record(key);
+        if (!mightContain(keyPrefix, id)) {
+            metrics.recordRequest(keyPrefix, HASH, BLOOM_REJECT);
+            return null;
+        }
+        // 1. 查询整个hash
+        long start = System.nanoTime();
+        Map<Object, Object> entries = stringRedisTemplate.opsForHash().entries(key);
+        metrics.recordRedisRead(key, "hgetall", start);
+        // 2. 根据标识字段判断是否命中
+        Object marker = entries.get(HASH_MARKER);
+        if (HASH_PRESENT.equals(marker)) {
+            R r = fromHash(key, entries, type);
+            if (r != null) {
+                cacheStats.recordL2Hit();
+                metrics.recordRequest(keyPrefix, HASH, HIT);
+                return r;
+            }
+        } else if (HASH_NULL.equals(marker)) {
+            cacheStats.recordL2NullHit();
+            metrics.recordRequest(keyPrefix, HASH, NULL_HIT);
             return null;
         }
+        cacheStats.recordL2Miss();
+        metrics.recordRequest(keyPrefix, HASH, MISS);
+        // 3. 未命中，查询数据库并写入整个hash
+        return singleFlight.execute(key, () -> loadAndCacheHash(key, id, dbFallback, time, unit),
+                CACHE_REBUILD_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+    }
 
-        // 6. 存在，写入redis
-        this.set(key, r, time, unit);
+    /***
+     * 只读取hash缓存中的部分字段，返回的对象中其他字段为null。未命中时加载整个对象写入缓存，返回完整的对象
+     * @param keyPrefix
+     * @param id
+     * @param type
+     * @param fields 需要的字段
+     * @param dbFallback
+     * @param time
+     * @param unit
+     * @return
+     * @param <R>
+     * @param <ID>
+     */
+    public <R, ID> R queryHashFields(String keyPrefix, ID id, Class<R> type, Collection<String> fields,
+                                     Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        List<R> list = queryHashFieldsBatch(keyPrefix, Collections.singletonList(id), type, fields,
+                ids -> {
+                    R r = dbFallback.apply(ids.iterator().next());
+                    return r == null ? Collections.emptyMap() : Collections.singletonMap(id, r);
+                }, time, unit);
+        return list.isEmpty() ? null : list.get(0);
+    }
 
-        // 7. 返回
-        return r;
+    /***
+     * 批量读取hash缓存中的部分字段，用于列表页只展示部分字段的场景。
+     * 一次pipeline执行所有的HMGET，未命中的id一次性查询数据库，再用一次pipeline写回完整的hash
+     * @param keyPrefix
+     * @param ids
+     * @param type
+     * @param fields 需要的字段
+     * @param dbFallback 根据未命中的id批量查询数据库，返回 id -> 对象 的映射，不存在的id不放入映射中即可
+     * @param time
+     * @param unit
+     * @return 按照ids的顺序返回，不存在的数据会被跳过。命中的对象只有需要的字段，从数据库加载的是完整的对象
+     * @param <R>
+     * @param <ID>
+     */
+    public <R, ID> List<R> queryHashFieldsBatch(String keyPrefix, Collection<ID> ids, Class<R> type,
+                                                Collection<String> fields,
+                                                Function<Collection<ID>, Map<ID, R>> dbFallback,
+                                                Long time, TimeUnit unit) {
+        if (ids == null || ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+        // 1. 去重，并保持原有顺序，布隆过滤器判断不存在的id直接跳过
+        List<ID> idList = new ArrayList<>(new LinkedHashSet<>(ids));
+        List<ID> remoteIds = new ArrayList<>(idList.size());
+        for (ID id : idList) {
+            hotKeyDetector.record(keyPrefix + id);
+            if (mightContain(keyPrefix, id)) {
+                remoteIds.add(id);
+            } else {
+                metrics.recordRequest(keyPrefix, HASH, BLOOM_REJECT);
+            }
+        }
+        if (remoteIds.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        // 2. 一次pipeline查询所有key的标识字段和需要的字段
+        List<String> fieldList = new ArrayList<>(fields.size() + 1);
+        fieldList.add(HASH_MARKER);
+        fieldList.addAll(fields);
+        byte[][] rawFields = fieldList.stream().map(CacheClient::rawKey).toArray(byte[][]::new);
+        long start = System.nanoTime();
+        List<Object> values = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (ID id : remoteIds) {
+                connection.hMGet(rawKey(keyPrefix + id), rawFields);
+            }
+            return null;
+        });
+        metrics.recordRedisRead(keyPrefix, "hmget", start);
+
+        // 3. 解析结果
+        Map<ID, R> found = new HashMap<>(remoteIds.size());
+        List<ID> missIds = new ArrayList<>();
+        for (int i = 0; i < remoteIds.size(); i++) {
+            ID id = remoteIds.get(i);
+            List<?> row = i < values.size() && values.get(i) instanceof List ? (List<?>) values.get(i) : null;
+            Object marker = row == null || row.isEmpty() ? null : row.get(0);
+            if (HASH_PRESENT.equals(marker)) {
+                Map<String, Object> map = new HashMap<>(fieldList.size());
+                for (int j = 1; j < fieldList.size() && j < row.size(); j++) {
+                    if (row.get(j) != null) {
+                        map.put(fieldList.get(j), row.get(j));
+                    }
+                }
+                R r = fromHash(keyPrefix + id, map, type);
+                if (r != null) {
+                    cacheStats.recordL2Hit();
+                    metrics.recordRequest(keyPrefix, HASH, HIT);
+                    found.put(id, r);
+                    continue;
+                }
+            } else if (HASH_NULL.equals(marker)) {
+                cacheStats.recordL2NullHit();
+                metrics.recordRequest(keyPrefix, HASH, NULL_HIT);
+                continue;
+            }
+            cacheStats.recordL2Miss();
+            metrics.recordRequest(keyPrefix, HASH, MISS);
+            missIds.add(id);
+        }
+
+        // 4. 未命中的id一次性查询数据库，并用pipeline写回完整的hash
+        if (!missIds.isEmpty()) {
+            long dbStart = System.nanoTime();
+            Map<ID, R> loaded = dbFallback.apply(missIds);
+            metrics.recordDbLoad(keyPrefix, HASH, dbStart);
+            Map<ID, R> dbResult = loaded == null ? Collections.emptyMap() : loaded;
+            ExpiryPolicy policy = expiryPolicy(keyPrefix, time, unit);
+            // 序列化放在pipeline外面
+            List<Map<byte[], byte[]>> rawHashes = new ArrayList<>(missIds.size());
+            for (ID id : missIds) {
+                Map<byte[], byte[]> rawHash = new HashMap<>();
+                toHash(dbResult.get(id)).forEach((field, fieldValue) -> rawHash.put(rawKey(field), rawKey(fieldValue)));
+                rawHashes.add(rawHash);
+            }
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (int i = 0; i < missIds.size(); i++) {
+                    ID id = missIds.get(i);
+                    byte[] rawKey = rawKey(keyPrefix + id);
+                    long ttlSeconds = dbResult.get(id) == null
+                            ? policy.nextNullTtlSeconds() : policy.redisTtlSeconds(policy.nextTtlSeconds());
+                    connection.del(rawKey);
+                    connection.hMSet(rawKey, rawHashes.get(i));
+                    connection.expire(rawKey, ttlSeconds);
+                }
+                return null;
+            });
+            for (ID id : missIds) {
+                R r = dbResult.get(id);
+                if (r != null) {
+                    found.put(id, r);
+                }
+            }
+        }
+
+        // 5. 按照原有顺序返回
+        List<R> result = new ArrayList<>(idList.size());
+        for (ID id : idList) {
+            R r = found.get(id);
+            if (r != null) {
+                result.add(r);
+            }
+        }
+        return result;
+    }
+
+    /***
+     * 部分更新hash缓存中的字段，缓存不存在或者是空值时不做任何操作(下次读取时从数据库加载完整的数据)。
+     * 应该在更新数据库之后调用，代替删除缓存，缓存不会因为一个字段的修改而失效
+     * @param key
+     * @param fields 字段名 -> 新的值，值为null的字段忽略
+     * @return 是否更新了缓存
+     */
+    public boolean updateHashFields(String key, Map<String, ?> fields) {
+        List<String> args = new ArrayList<>(fields.size() * 2);
+        fields.forEach((field, fieldValue) -> {
+            String value = hashValue(fieldValue);
+            if (value != null && !HASH_MARKER.equals(field)) {
+                args.add(field);
+                args.add(value);
+            }
+        });
+        if (args.isEmpty()) {
+            return false;
+        }
+        Long result = stringRedisTemplate.execute(HASH_UPDATE_SCRIPT, Collections.singletonList(key), args.toArray());
+        return result != null && result == 1L;
+    }
+
+    /***
+     * 原地增加hash缓存中的计数字段(销量、评论数等)，缓存不存在或者是空值时不做任何操作。
+     * 应该在更新数据库之后调用
+     * @param key
+     * @param field
+     * @param delta
+     * @return 更新后的值，缓存不存在时返回null
+     */
+    public Long incrementHashField(String key, String field, long delta) {
+        return stringRedisTemplate.execute(HASH_INCR_SCRIPT, Collections.singletonList(key),
+                field, String.valueOf(delta));
     }
 
     /***
@@ -118,51 +674,161 @@ public class CacheClient {
     public <R, ID> R queryWithLogicalExpire(
             String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
         String key = keyPrefix + id;
-        // 1.从redis查询商铺缓存
-        String json = stringRedisTemplate.opsForValue().get(key);
-        // 2.判断是否存在
-        if (StrUtil.isBlank(json)) {
-            // 3.未命中，直接返回
-            return null;
+        // 0.记录访问，热点key优先读本地副本
+        hotKeyDetector.record(key);
+        RedisData redisData = hotKeyDetector.getPinned(key, RedisData.class);
+        String result = REPLICA_HIT;
+        if (redisData == null) {
+            // 1.从redis查询商铺缓存
+            byte[] bytes = getRaw(key);
+            // 2.判断是否存在
+            if (bytes == null || bytes.length == 0) {
+                // 3.未命中，直接返回
+                metrics.recordRequest(keyPrefix, LOGICAL_EXPIRE, MISS);
+                return null;
+            }
+            // 4.命中，需要先反序列化为对象，data直接转为type类型，不需要再转换一次
+            redisData = decodeLogical(key, bytes, type);
+            // 如果转化得到的数据和过期时间都为null，说明缓存中的数据格式不对
+            if (redisData == null || redisData.getData() == null || redisData.getExpireTime() == null) {
+                metrics.recordRequest(keyPrefix, LOGICAL_EXPIRE, MISS);
+                return null;
+            }
+            hotKeyDetector.pinIfHot(key, redisData);
+            result = HIT;
         }
-        // 4.命中，需要先把json反序列化为对象
-        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
-        // 如果转化得到的数据和过期时间都为null，说明缓存中的数据格式不对
-        if (redisData.getData() == null || redisData.getExpireTime() == null) return null;
 
-        R r = JSONUtil.toBean((JSONObject) redisData.getData(), type);
+        R r = type.cast(redisData.getData());
         LocalDateTime expireTime = redisData.getExpireTime();
         // 5.判断是否过期
         if(expireTime.isAfter(LocalDateTime.now())) {
             // 5.1.未过期，直接返回店铺信息
+            metrics.recordRequest(keyPrefix, LOGICAL_EXPIRE, result);
             return r;
         }
-        // 5.2.已过期，需要缓存重建
+        // 5.2.已过期，需要缓存重建。删除本地副本，下次从redis读取重建后的数据
+        metrics.recordRequest(keyPrefix, LOGICAL_EXPIRE, STALE);
+        hotKeyDetector.unpin(key);
         // 6.缓存重建
-        // 6.1.获取互斥锁
-        String lockKey = LOCK_SHOP_KEY + id;
-        boolean isLock = tryLock(lockKey);
-        // 6.2.判断是否获取锁成功
-        if (isLock){
-            // 6.3.成功，开启独立线程，实现缓存重建
-            CACHE_REBUILD_EXECUTOR.submit(() -> {
-                try {
-                    // 查询数据库
-                    R newR = dbFallback.apply(id);
-                    // 重建缓存
-                    this.setWithLogicalExpire(key, newR, time, unit);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                }finally {
-                    // 释放锁
-                    unlock(lockKey);
+        rebuildLogicalAsync(key, id, dbFallback, time, unit, LOGICAL_EXPIRE);
+        // 6.4.返回过期的商铺信息
+        return r;
+    }
+
+    /***
+     * 逻辑过期的基础上提前刷新(XFetch)，避免热点key在同一时刻过期、所有节点同时抢锁重建。
+     * 每次读取都以一定概率触发后台刷新，越接近过期时间、重建耗时越长，概率越大：
+     * now - rebuildCost * beta * ln(random) >= expireTime 时刷新
+     * @param keyPrefix
+     * @param id
+     * @param type
+     * @param dbFallback
+     * @param time
+     * @param unit
+     * @return
+     * @param <R>
+     * @param <ID>
+     */
+    public <R, ID> R queryWithEarlyRefresh(
+            String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        String key = keyPrefix + id;
+        // 0.记录访问，热点key优先读本地副本
+        hotKeyDetector.record(key);
+        RedisData redisData = hotKeyDetector.getPinned(key, RedisData.class);
+        String result = REPLICA_HIT;
+        if (redisData == null) {
+            // 1.从redis查询缓存
+            byte[] bytes = getRaw(key);
+            if (bytes != null && bytes.length == 0) {
+                // 命中空值
+                cacheStats.recordL2NullHit();
+                metrics.recordRequest(keyPrefix, EARLY_REFRESH, NULL_HIT);
+                return null;
+            }
+            redisData = bytes == null ? null : decodeLogical(key, bytes, type);
+            if (redisData != null && redisData.getData() != null && redisData.getExpireTime() != null) {
+                cacheStats.recordL2Hit();
+                hotKeyDetector.pinIfHot(key, redisData);
+                result = HIT;
+            }
+        }
+        if (redisData == null || redisData.getData() == null || redisData.getExpireTime() == null) {
+            // 2.未命中，同步加载，同一个JVM中同一个key只加载一次
+            cacheStats.recordL2Miss();
+            metrics.recordRequest(keyPrefix, EARLY_REFRESH, MISS);
+            return singleFlight.execute(key, () -> {
+                long begin = System.currentTimeMillis();
+                R r = loadFromDb(key, id, dbFallback, EARLY_REFRESH);
+                if (r == null) {
+                    setRaw(key, EMPTY, expiryPolicy(key, time, unit).nextNullTtlSeconds());
+                    return null;
                 }
-            });
+                setWithLogicalExpire(key, r, time, unit, System.currentTimeMillis() - begin);
+                return r;
+            }, CACHE_REBUILD_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        R r = type.cast(redisData.getData());
+
+        // 3.判断是否需要提前刷新
+        long expireMillis = redisData.getExpireTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        long rebuildCost = redisData.getRebuildCost() == null ? DEFAULT_REBUILD_COST_MILLIS : redisData.getRebuildCost();
+        double random = 1 - ThreadLocalRandom.current().nextDouble(); // (0, 1]
+        if (System.currentTimeMillis() - rebuildCost * EARLY_REFRESH_BETA * Math.log(random) >= expireMillis) {
+            // 4.需要刷新，后台重建，当前请求返回旧数据
+            metrics.recordRequest(keyPrefix, EARLY_REFRESH, REFRESH);
+            rebuildLogicalAsync(key, id, dbFallback, time, unit, EARLY_REFRESH);
+        } else {
+            metrics.recordRequest(keyPrefix, EARLY_REFRESH, result);
         }
-        // 6.4.返回过期的商铺信息
         return r;
     }
 
+    /***
+     * 把逻辑过期缓存的重建交给重建线程池，同一个key在本节点只会排队一次，队列满了则放弃，继续返回旧数据。
+     * 重建线程中获取互斥锁，避免多个节点同时重建，并记录重建耗时
+     */
+    <R, ID> void rebuildLogicalAsync(String key, ID id, Function<ID, R> dbFallback, Long time, TimeUnit unit,
+                                     String strategy) {
+        submitWithLock(key, () -> {
+            // 查询数据库
+            long begin = System.currentTimeMillis();
+            R newR = loadFromDb(key, id, dbFallback, strategy);
+            // 重建缓存，记录重建耗时
+            this.setWithLogicalExpire(key, newR, time, unit, System.currentTimeMillis() - begin);
+        });
+    }
+
+    /***
+     * stale-while-revalidate：普通缓存进入stale阶段后在后台重新查询数据库并写入，AsyncCacheClient 也使用这个方法
+     */
+    <R, ID> void refreshAsync(String key, ID id, Class<R> type, Function<ID, R> dbFallback,
+                              Long time, TimeUnit unit, String strategy) {
+        submitWithLock(key, () -> loadAndCache(key, id, type, dbFallback, time, unit, strategy));
+    }
+
+    /***
+     * 提交到重建线程池，在重建线程中获取互斥锁，获取失败说明其他节点正在重建，直接放弃
+     */
+    private void submitWithLock(String key, Runnable rebuild) {
+        rebuildScheduler.submit(key, () -> {
+            // 6.1.获取互斥锁
+            String lockKey = lockKey(key);
+            boolean isLock = tryLock(lockKey);
+            metrics.recordLock(key, isLock ? LOCK_ACQUIRED : LOCK_CONTENDED);
+            // 6.2.获取锁失败，说明其他节点正在重建
+            if (!isLock) {
+                return;
+            }
+            // 6.3.成功，实现缓存重建
+            try {
+                rebuild.run();
+            } finally {
+                // 释放锁
+                unlock(lockKey);
+            }
+        });
+    }
+
     /***
      * 互斥锁防止缓存击穿
      * @param keyPrefix
@@ -178,52 +844,348 @@ public class CacheClient {
     public <R, ID> R queryWithMutex(
             String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
         String key = keyPrefix + id;
-        // 1.从redis查询商铺缓存
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-        // 2.判断是否存在
-        if (StrUtil.isNotBlank(shopJson)) {
-            // 3.存在，直接返回
-            return JSONUtil.toBean(shopJson, type);
+        // 0.记录访问，热点key优先读本地副本，再查本地缓存
+        hotKeyDetector.record(key);
+        R pinned = hotKeyDetector.getPinned(key, type);
+        if (pinned != null) {
+            metrics.recordRequest(keyPrefix, MUTEX, REPLICA_HIT);
+            return pinned;
         }
-        // 判断命中的是否是空值
-        if (shopJson != null) {
-            // 返回一个错误信息
+        R local = localCache.get(key, type);
+        if (local != null) {
+            metrics.recordRequest(keyPrefix, MUTEX, L1_HIT);
+            return local;
+        }
+        // 布隆过滤器判断不存在，直接返回，不再访问redis和数据库
+        if (!mightContain(keyPrefix, id)) {
+            metrics.recordRequest(keyPrefix, MUTEX, BLOOM_REJECT);
+            return null;
+        }
+        // 1.从redis查询商铺缓存，开启了stale-while-revalidate时同时查询剩余的过期时间
+        ExpiryPolicy policy = expiryPolicy(key, time, unit);
+        RawEntry entry = getRawEntry(key, policy.getStaleSeconds() > 0);
+        byte[] bytes = entry.bytes;
+        // 2.判断是否存在
+        if (bytes != null && bytes.length > 0) {
+            // 3.存在，写入本地缓存后返回。无法解析的格式当作未命中
+            R r = decode(key, bytes, type);
+            if (r != null) {
+                cacheStats.recordL2Hit();
+                // 3.1.已经进入stale阶段，返回旧数据，后台获取互斥锁后刷新
+                if (policy.isStale(entry.ttlMillis)) {
+                    metrics.recordRequest(keyPrefix, MUTEX, STALE);
+                    refreshAsync(key, id, type, dbFallback, time, unit, MUTEX);
+                    return r;
+                }
+                metrics.recordRequest(keyPrefix, MUTEX, HIT);
+                localCache.put(key, r);
+                hotKeyDetector.pinIfHot(key, r);
+                return r;
+            }
+        } else if (bytes != null) {
+            // 判断命中的是否是空值，返回一个错误信息
+            cacheStats.recordL2NullHit();
+            metrics.recordRequest(keyPrefix, MUTEX, NULL_HIT);
             return null;
         }
+        cacheStats.recordL2Miss();
+        metrics.recordRequest(keyPrefix, MUTEX, MISS);
+
+        // 4.实现缓存重建，同一个JVM中同一个key只有一个线程去获取互斥锁，其余线程等待它的结果
+        return singleFlight.execute(key, () -> rebuildWithMutex(key, id, type, dbFallback, time, unit),
+                CACHE_REBUILD_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+    }
 
-        // 4.实现缓存重建
-        // 4.1.获取互斥锁
-        String lockKey = LOCK_SHOP_KEY + id;
-        R r = null;
+    /***
+     * queryWithMutex 的缓存重建，只由single flight的leader线程执行。获取不到锁说明其他节点正在重建，
+     * 休眠后重新查询redis，最多重试 LOCK_RETRY_TIMES 次，不再递归
+     */
+    private <R, ID> R rebuildWithMutex(String key, ID id, Class<R> type, Function<ID, R> dbFallback,
+                                       Long time, TimeUnit unit) {
+        String lockKey = lockKey(key);
         try {
-            boolean isLock = tryLock(lockKey);
-            // 4.2.判断是否获取成功
-            if (!isLock) {
-                // 4.3.获取锁失败，休眠并重试
-                Thread.sleep(50);
-                return queryWithMutex(keyPrefix, id, type, dbFallback, time, unit);
-            }
-            // 4.4.获取锁成功，根据id查询数据库
-            r = dbFallback.apply(id);
-            // 5.不存在，返回错误
-            if (r == null) {
-                // 将空值写入redis
-                stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
-                // 返回错误信息
-                return null;
+            for (int i = 0; i < LOCK_RETRY_TIMES; i++) {
+                // 4.1.获取互斥锁
+                boolean isLock = tryLock(lockKey);
+                // 4.2.判断是否获取成功
+                metrics.recordLock(key, isLock ? LOCK_ACQUIRED : LOCK_CONTENDED);
+                if (isLock) {
+                    try {
+                        // 4.3.获取锁成功，再次检查redis，可能其他节点刚刚重建完成
+                        byte[] bytes = getRaw(key);
+                        if (bytes != null) {
+                            return decodeAndCache(key, bytes, type);
+                        }
+                        // 4.4.根据id查询数据库并写入缓存
+                        return loadAndCache(key, id, type, dbFallback, time, unit, MUTEX);
+                    } finally {
+                        // 4.5.释放锁
+                        unlock(lockKey);
+                    }
+                }
+                // 4.6.获取锁失败，休眠后查询其他节点是否已经重建完成
+                Thread.sleep(LOCK_RETRY_INTERVAL_MILLIS);
+                byte[] bytes = getRaw(key);
+                if (bytes != null) {
+                    return decodeAndCache(key, bytes, type);
+                }
             }
-            // 6.存在，写入redis
-            this.set(key, r, time, unit);
         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             throw new RuntimeException(e);
-        }finally {
-            // 7.释放锁
-            unlock(lockKey);
         }
-        // 8.返回
+        // 5.重试次数用完，持有锁的节点可能已经宕机，直接查询数据库，由于single flight每个节点最多只有一个线程会走到这里
+        log.warn("等待缓存重建超时，直接查询数据库, key: {}", key);
+        metrics.recordLock(key, LOCK_TIMEOUT);
+        return loadAndCache(key, id, type, dbFallback, time, unit, MUTEX);
+    }
+
+    /***
+     * 把redis中查到的值转为对象并放入本地缓存，空字符串表示缓存的空值
+     */
+    private <R> R decodeAndCache(String key, byte[] bytes, Class<R> type) {
+        if (bytes.length == 0) {
+            return null;
+        }
+        R r = decode(key, bytes, type);
+        localCache.put(key, r);
+        hotKeyDetector.pinIfHot(key, r);
+        return r;
+    }
+
+    /***
+     * 查询数据库并写入缓存，数据库中不存在时缓存空值
+     */
+    private <R, ID> R loadAndCache(String key, ID id, Class<R> type, Function<ID, R> dbFallback,
+                                   Long time, TimeUnit unit, String strategy) {
+        R r = loadFromDb(key, id, dbFallback, strategy);
+        if (r == null) {
+            // 将空值写入redis
+            setRaw(key, EMPTY, expiryPolicy(key, time, unit).nextNullTtlSeconds());
+            return null;
+        }
+        // 存在，写入redis和本地缓存
+        this.set(key, r, time, unit);
+        localCache.put(key, r);
+        hotKeyDetector.pinIfHot(key, r);
+        return r;
+    }
+
+    /***
+     * 查询数据库，记录耗时
+     */
+    private <R, ID> R loadFromDb(String key, ID id, Function<ID, R> dbFallback, String strategy) {
+        long start = System.nanoTime();
+        try {
+            return dbFallback.apply(id);
+        } finally {
+            metrics.recordDbLoad(key, strategy, start);
+        }
+    }
+
+    /***
+     * 查询数据库并写入整个hash，数据库中不存在时缓存空值
+     */
+    private <R, ID> R loadAndCacheHash(String key, ID id, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        R r = loadFromDb(key, id, dbFallback, HASH);
+        setHash(key, r, time, unit);
         return r;
     }
 
+    /***
+     * 对象转为hash，包括标识字段。null转为只有标识字段的空值
+     */
+    private static Map<String, String> toHash(Object value) {
+        Map<String, String> hash = new HashMap<>();
+        if (value == null) {
+            hash.put(HASH_MARKER, HASH_NULL);
+            return hash;
+        }
+        Map<String, Object> fields = BeanUtil.beanToMap(value, new HashMap<>(), HASH_COPY_OPTIONS);
+        fields.forEach((field, fieldValue) -> {
+            if (fieldValue != null) {
+                hash.put(field, fieldValue.toString());
+            }
+        });
+        hash.put(HASH_MARKER, HASH_PRESENT);
+        return hash;
+    }
+
+    private static String hashValue(Object value) {
+        if (value == null) {
+            return null;
+        }
+        if (value instanceof LocalDateTime) {
+            return LocalDateTimeUtil.formatNormal((LocalDateTime) value);
+        }
+        return value.toString();
+    }
+
+    /***
+     * hash转为对象，不认识的字段忽略，解析失败时返回null，当作缓存未命中
+     */
+    private <R> R fromHash(String key, Map<?, ?> hash, Class<R> type) {
+        try {
+            return BeanUtil.mapToBean(hash, type, false, CopyOptions.create());
+        } catch (Exception e) {
+            log.error("hash缓存解析失败, key: {}", key, e);
+            return null;
+        }
+    }
+
+    /***
+     * 使用key对应的序列化方式序列化，记录耗时
+     */
+    byte[] encode(String key, Object value) {
+        long start = System.nanoTime();
+        byte[] bytes = codecFor(key).encode(value);
+        metrics.recordCodec(key, "encode", start);
+        return bytes;
+    }
+
+    /***
+     * 根据key找到最长匹配的前缀注册的过期策略，没有注册时使用传入的过期时间。
+     * 调用者传入了过期时间时以传入的为准，注册的策略只提供随机值、空值ttl和stale时间
+     */
+    ExpiryPolicy expiryPolicy(String key, Long time, TimeUnit unit) {
+        ExpiryPolicy policy = null;
+        int matched = -1;
+        for (Map.Entry<String, ExpiryPolicy> entry : expiryPolicies.entrySet()) {
+            String prefix = entry.getKey();
+            if (key.startsWith(prefix) && prefix.length() > matched) {
+                policy = entry.getValue();
+                matched = prefix.length();
+            }
+        }
+        if (policy == null) {
+            return ExpiryPolicy.of(time, unit);
+        }
+        return time == null ? policy : policy.withTtl(time, unit);
+    }
+
+    /***
+     * 根据key找到最长匹配的前缀注册的序列化方式
+     */
+    private CacheCodec codecFor(String key) {
+        CacheCodec codec = CacheCodecs.JSON;
+        int matched = -1;
+        for (Map.Entry<String, CacheCodec> entry : codecs.entrySet()) {
+            String prefix = entry.getKey();
+            if (key.startsWith(prefix) && prefix.length() > matched) {
+                codec = entry.getValue();
+                matched = prefix.length();
+            }
+        }
+        return codec;
+    }
+
+    /***
+     * 根据格式标识反序列化，不认识的格式或者数据损坏时返回null，当作缓存未命中
+     */
+    <R> R decode(String key, byte[] bytes, Class<R> type) {
+        CacheCodec codec = CacheCodecs.detect(bytes);
+        if (codec == null) {
+            log.warn("不支持的缓存格式: {}, key: {}", bytes[0], key);
+            return null;
+        }
+        long start = System.nanoTime();
+        try {
+            return codec.decode(bytes, type);
+        } catch (Exception e) {
+            log.error("缓存反序列化失败, key: {}", key, e);
+            return null;
+        } finally {
+            metrics.recordCodec(key, "decode", start);
+        }
+    }
+
+    <R> RedisData decodeLogical(String key, byte[] bytes, Class<R> type) {
+        CacheCodec codec = CacheCodecs.detect(bytes);
+        if (codec == null) {
+            log.warn("不支持的缓存格式: {}, key: {}", bytes[0], key);
+            return null;
+        }
+        long start = System.nanoTime();
+        try {
+            return codec.decodeLogical(bytes, type);
+        } catch (Exception e) {
+            log.error("缓存反序列化失败, key: {}", key, e);
+            return null;
+        } finally {
+            metrics.recordCodec(key, "decode", start);
+        }
+    }
+
+    private static byte[] rawKey(String key) {
+        return key.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private byte[] getRaw(String key) {
+        long start = System.nanoTime();
+        try {
+            return stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.get(rawKey(key)));
+        } finally {
+            metrics.recordRedisRead(key, "get", start);
+        }
+    }
+
+    /***
+     * 查询值，需要时用同一个pipeline查询剩余的过期时间，只有一次网络往返
+     * @param withTtl 是否查询剩余的过期时间
+     */
+    private RawEntry getRawEntry(String key, boolean withTtl) {
+        if (!withTtl) {
+            return new RawEntry(getRaw(key), -1);
+        }
+        long start = System.nanoTime();
+        try {
+            List<Object> results = stringRedisTemplate.execute((RedisCallback<List<Object>>) connection -> {
+                connection.openPipeline();
+                connection.get(rawKey(key));
+                connection.pTtl(rawKey(key));
+                return connection.closePipeline();
+            });
+            if (results == null || results.size() < 2) {
+                return new RawEntry(null, -1);
+            }
+            Object ttl = results.get(1);
+            return new RawEntry((byte[]) results.get(0), ttl instanceof Long ? (Long) ttl : -1);
+        } finally {
+            metrics.recordRedisRead(key, "get", start);
+        }
+    }
+
+    private List<byte[]> multiGetRaw(List<String> keys) {
+        byte[][] rawKeys = keys.stream().map(CacheClient::rawKey).toArray(byte[][]::new);
+        long start = System.nanoTime();
+        try {
+            return stringRedisTemplate.execute((RedisCallback<List<byte[]>>) connection -> connection.mGet(rawKeys));
+        } finally {
+            metrics.recordRedisRead(keys.get(0), "mget", start);
+        }
+    }
+
+    /***
+     * @param ttlSeconds 小于等于0表示不设置过期时间
+     */
+    private void setRaw(String key, byte[] value, long ttlSeconds) {
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+            if (ttlSeconds > 0) {
+                connection.setEx(rawKey(key), ttlSeconds, value);
+            } else {
+                connection.set(rawKey(key), value);
+            }
+            return null;
+        });
+    }
+
+    /***
+     * 重建缓存的互斥锁按缓存key区分，不同前缀的相同id、同一个id的不同缓存格式互不影响
+     */
+    private static String lockKey(String key) {
+        return CACHE_LOCK_KEY + key;
+    }
+
     private boolean tryLock(String key) {
         Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", LOCK_SHOP_TTL, TimeUnit.SECONDS);
         return BooleanUtil.isTrue(flag);
@@ -232,4 +1194,17 @@ public class CacheClient {
     private void unlock(String key) {
         stringRedisTemplate.delete(key);
     }
+
+    /***
+     * redis中的值和剩余的过期时间(毫秒，-1表示没有查询或者没有过期时间)
+     */
+    private static class RawEntry {
+        private final byte[] bytes;
+        private final long ttlMillis;
+
+        private RawEntry(byte[] bytes, long ttlMillis) {
+            this.bytes = bytes;
+            this.ttlMillis = ttlMillis;
+        }
+    }
 }
@@ -0,0 +1,38 @@
+package com.hmdp.utils;
+
+/***
+ * 缓存值的序列化方式。二进制格式的第一个字节是格式标识(同时代表版本)，读取时根据它选择解码方式，
+ * 所以同一个key前缀切换序列化方式或者滚动升级时，新旧格式的数据可以同时存在。JSON格式没有格式标识，兼容已有的缓存数据
+ */
+public interface CacheCodec {
+    /***
+     * 格式标识，JSON格式没有格式标识，返回0
+     * @return
+     */
+    byte format();
+
+    /***
+     * 序列化，结果包含格式标识
+     * @param value
+     * @return
+     */
+    byte[] encode(Object value);
+
+    /***
+     * 反序列化
+     * @param bytes encode的结果
+     * @param type
+     * @return
+     * @param <T>
+     */
+    <T> T decode(byte[] bytes, Class<T> type);
+
+    /***
+     * 反序列化逻辑过期的数据，返回的RedisData中的data已经是type类型，不需要再转换一次
+     * @param bytes encode(RedisData)的结果
+     * @param type data的类型
+     * @return
+     * @param <T>
+     */
+    <T> RedisData decodeLogical(byte[] bytes, Class<T> type);
+}
@@ -0,0 +1,51 @@
+package com.hmdp.utils;
+
+/***
+ * 所有的序列化方式。读取时根据数据的第一个字节判断格式：二进制格式的格式标识都小于0x20，
+ * json文本的第一个字符不会小于0x20(空白字符除外)。不认识的格式标识(例如新版本写入的数据)当作缓存未命中处理
+ */
+public class CacheCodecs {
+    public static final JsonCacheCodec JSON = new JsonCacheCodec();
+    public static final BinaryCacheCodec BINARY = new BinaryCacheCodec();
+    /**
+     * 序列化后超过256字节才压缩
+     */
+    public static final DeflateCacheCodec DEFLATE = new DeflateCacheCodec(BINARY, 256);
+
+    /***
+     * 根据配置的名称获取序列化方式
+     * @param name json、binary、deflate
+     * @return
+     */
+    public static CacheCodec of(String name) {
+        switch (name.toLowerCase()) {
+            case "json":
+                return JSON;
+            case "binary":
+                return BINARY;
+            case "deflate":
+                return DEFLATE;
+            default:
+                throw new IllegalArgumentException("未知的缓存序列化方式: " + name);
+        }
+    }
+
+    /***
+     * 根据数据的格式标识判断序列化方式
+     * @param bytes 非空数据
+     * @return 不认识的格式返回null
+     */
+    public static CacheCodec detect(byte[] bytes) {
+        byte first = bytes[0];
+        if (first == BinaryCacheCodec.FORMAT) {
+            return BINARY;
+        }
+        if (first == DeflateCacheCodec.FORMAT) {
+            return DEFLATE;
+        }
+        if (first >= 0x20 || first == '\t' || first == '\n' || first == '\r') {
+            return JSON;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,235 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+/***
+ * 缓存失效管道。数据库更新之后不在请求线程中直接删除缓存，而是：
+ * 1. 在事务提交之后(没有事务时立即)把要删除的key放入延迟队列；
+ * 2. 后台线程把到期的key合并成一次DEL批量删除，同时通知所有节点删除本地缓存；
+ * 3. 删除失败时按指数退避重试，超过次数后记为放弃：打印错误日志，cache.invalidation{result=failed} 加一，
+ *    key记入 cache.invalidation.abandoned，之后按较长的间隔继续重试，删除成功后才从中移除，
+ *    这个指标大于0说明有缓存可能一直是旧数据，需要告警；
+ * 4. 第一次删除之后再延迟删除一次(延迟双删)，清理并发读取在两次操作之间写回的旧数据。
+ * 队列在JVM内，进程崩溃时还没有执行的删除会丢失，只能等缓存过期。
+ * 所有写数据的地方都通过 CacheClient.delete 使用这个管道
+ */
+@Slf4j
+@Component
+public class CacheInvalidator {
+    private final StringRedisTemplate stringRedisTemplate;
+    private final LocalCache localCache;
+    private final HotKeyDetector hotKeyDetector;
+    private final long doubleDeleteDelayMillis;
+    private final int maxRetries;
+    private final int batchSize;
+    private final long abandonedRetryMillis;
+
+    private final DelayQueue<Task> queue = new DelayQueue<>();
+    /**
+     * 重试次数用完、还没有删除成功的key，每个key只保留一个慢速重试任务
+     */
+    private final Set<String> abandoned = ConcurrentHashMap.newKeySet();
+    private volatile boolean running = true;
+    private Thread worker;
+
+    private final Counter deleted;
+    private final Counter retried;
+    private final Counter failed;
+
+    public CacheInvalidator(StringRedisTemplate stringRedisTemplate, LocalCache localCache,
+                            HotKeyDetector hotKeyDetector, MeterRegistry registry,
+                            @Value("${hmdp.cache.invalidation.double-delete-delay-millis:500}") long doubleDeleteDelayMillis,
+                            @Value("${hmdp.cache.invalidation.max-retries:5}") int maxRetries,
+                            @Value("${hmdp.cache.invalidation.batch-size:100}") int batchSize,
+                            @Value("${hmdp.cache.invalidation.abandoned-retry-millis:30000}") long abandonedRetryMillis) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.localCache = localCache;
+        this.hotKeyDetector = hotKeyDetector;
+        this.doubleDeleteDelayMillis = doubleDeleteDelayMillis;
+        this.maxRetries = maxRetries;
+        this.batchSize = batchSize;
+        this.abandonedRetryMillis = abandonedRetryMillis;
+        Gauge.builder("cache.invalidation.pending", queue, Collection::size).register(registry);
+        Gauge.builder("cache.invalidation.abandoned", abandoned, Collection::size).register(registry);
+        this.deleted = Counter.builder("cache.invalidation").tag("result", "deleted").register(registry);
+        this.retried = Counter.builder("cache.invalidation").tag("result", "retried").register(registry);
+        this.failed = Counter.builder("cache.invalidation").tag("result", "failed").register(registry);
+    }
+
+    @PostConstruct
+    private void init() {
+        worker = new Thread(this::process, "cache-invalidator");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    @PreDestroy
+    private void destroy() throws InterruptedException {
+        running = false;
+        worker.interrupt();
+        worker.join(1000);
+        // 还没有执行的删除(包括还没到时间的延迟删除)在关闭前立即执行一次
+        List<Task> rest = new ArrayList<>(queue);
+        queue.clear();
+        if (!rest.isEmpty()) {
+            deleteBatch(rest);
+        }
+    }
+
+    /***
+     * 删除缓存。在事务中调用时，事务提交之后才删除，事务回滚则不删除
+     * @param keys 完整的key
+     */
+    public void invalidate(String... keys) {
+        invalidate(Arrays.asList(keys));
+    }
+
+    public void invalidate(Collection<String> keys) {
+        if (keys.isEmpty()) {
+            return;
+        }
+        List<String> copy = new ArrayList<>(keys);
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    enqueue(copy);
+                }
+            });
+        } else {
+            enqueue(copy);
+        }
+    }
+
+    /***
+     * 等待删除的key的数量
+     */
+    public int pendingCount() {
+        return queue.size();
+    }
+
+    private void enqueue(List<String> keys) {
+        long now = System.currentTimeMillis();
+        for (String key : keys) {
+            queue.offer(new Task(key, now, 0, doubleDeleteDelayMillis > 0));
+        }
+    }
+
+    private void process() {
+        List<Task> batch = new ArrayList<>(batchSize);
+        while (running) {
+            try {
+                // 1. 等待第一个到期的任务，再把其余已经到期的任务一起取出
+                batch.add(queue.take());
+                queue.drainTo(batch, batchSize - 1);
+                // 2. 批量删除
+                deleteBatch(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                log.error("处理缓存失效任务异常", e);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void deleteBatch(List<Task> batch) {
+        Set<String> keys = new LinkedHashSet<>();
+        for (Task task : batch) {
+            keys.add(task.key);
+        }
+        try {
+            // 1. 一次DEL删除redis中的key，并通知所有节点删除本地缓存
+            stringRedisTemplate.delete(keys);
+            for (String key : keys) {
+                hotKeyDetector.unpin(key);
+            }
+            localCache.invalidateAll(keys);
+            deleted.increment(keys.size());
+            if (!abandoned.isEmpty()) {
+                abandoned.removeAll(keys);
+            }
+        } catch (Exception e) {
+            // 2. 失败，按指数退避重试
+            log.warn("删除缓存失败，稍后重试, keys: {}", keys, e);
+            long now = System.currentTimeMillis();
+            for (Task task : batch) {
+                if (task.attempt < maxRetries) {
+                    retried.increment();
+                    queue.offer(new Task(task.key, now + (100L << task.attempt), task.attempt + 1, task.doubleDelete));
+                    continue;
+                }
+                if (task.attempt == maxRetries) {
+                    // 2.1.重试次数用完，记为放弃并告警，已经在慢速重试的key不再重复安排
+                    failed.increment();
+                    log.error("删除缓存失败次数过多，缓存可能一直是旧数据，之后每 {}ms 重试一次, key: {}",
+                            abandonedRetryMillis, task.key);
+                    if (!abandoned.add(task.key)) {
+                        continue;
+                    }
+                } else if (!abandoned.contains(task.key)) {
+                    // 2.2.其他任务已经删除成功
+                    continue;
+                }
+                // 2.3.按较长的间隔继续重试
+                queue.offer(new Task(task.key, now + abandonedRetryMillis, maxRetries + 1, false));
+            }
+            return;
+        }
+        // 3. 第一次删除成功后，安排延迟的第二次删除
+        long due = System.currentTimeMillis() + doubleDeleteDelayMillis;
+        for (Task task : batch) {
+            if (task.doubleDelete) {
+                queue.offer(new Task(task.key, due, 0, false));
+            }
+        }
+    }
+
+    private static class Task implements Delayed {
+        private final String key;
+        private final long dueAt;
+        /**
+         * 已经重试的次数，大于 maxRetries 表示已经放弃、按较长间隔重试的任务
+         */
+        private final int attempt;
+        /**
+         * 本次删除成功后是否还要延迟删除一次
+         */
+        private final boolean doubleDelete;
+
+        private Task(String key, long dueAt, int attempt, boolean doubleDelete) {
+            this.key = key;
+            this.dueAt = dueAt;
+            this.attempt = attempt;
+            this.doubleDelete = doubleDelete;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(dueAt - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            return Long.compare(dueAt, ((Task) o).dueAt);
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.*;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/***
+ * 缓存的监控指标，通过actuator导出。按key前缀打标签，前缀取key中最后一个冒号之前的部分，例如 cache:shop:。
+ * 指标对象按前缀分组缓存起来，已知的前缀用 startsWith 匹配，记录一次只有几次前缀比较、两三次map查找和一次累加，
+ * 不截取、不拼接字符串，可以在生产环境一直开启。
+ * 各个耗时指标的直方图范围不同：codec和redis读取从10微秒开始，数据库查询从1毫秒开始
+ * <ul>
+ *     <li>cache.requests：每次查询的结果，标签 prefix、strategy(查询方式)、result</li>
+ *     <li>cache.lock：重建缓存的互斥锁，标签 prefix、result(acquired/contended/timeout)</li>
+ *     <li>cache.redis.read：读取redis的耗时，标签 prefix、op(get/mget/hgetall/hmget)</li>
+ *     <li>cache.db.load：查询数据库的耗时，标签 prefix、strategy</li>
+ *     <li>cache.codec：序列化和反序列化的耗时，标签 prefix、op(encode/decode)</li>
+ * </ul>
+ */
+@Component
+public class CacheMetrics {
+    public static final String PASS_THROUGH = "pass_through";
+    public static final String MUTEX = "mutex";
+    public static final String LOGICAL_EXPIRE = "logical_expire";
+    public static final String EARLY_REFRESH = "early_refresh";
+    public static final String BATCH = "batch";
+    public static final String HASH = "hash";
+
+    /**
+     * 本地缓存命中
+     */
+    public static final String L1_HIT = "l1_hit";
+    /**
+     * 热点key的本地副本命中
+     */
+    public static final String REPLICA_HIT = "replica_hit";
+    public static final String HIT = "hit";
+    public static final String NULL_HIT = "null_hit";
+    public static final String MISS = "miss";
+    /**
+     * 布隆过滤器判断不存在
+     */
+    public static final String BLOOM_REJECT = "bloom_reject";
+    /**
+     * 返回了逻辑过期的旧数据
+     */
+    public static final String STALE = "stale";
+    /**
+     * 逻辑过期之前提前触发了刷新
+     */
+    public static final String REFRESH = "refresh";
+
+    public static final String LOCK_ACQUIRED = "acquired";
+    public static final String LOCK_CONTENDED = "contended";
+    public static final String LOCK_TIMEOUT = "timeout";
+
+    private static final Duration CODEC_MIN = Duration.ofNanos(10_000);
+    private static final Duration CODEC_MAX = Duration.ofMillis(100);
+    private static final Duration REDIS_READ_MIN = Duration.ofNanos(10_000);
+    private static final Duration REDIS_READ_MAX = Duration.ofSeconds(1);
+    private static final Duration DB_LOAD_MIN = Duration.ofMillis(1);
+    private static final Duration DB_LOAD_MAX = Duration.ofSeconds(5);
+
+    private final MeterRegistry registry;
+    private final boolean histogram;
+    /**
+     * 前缀 -> 这个前缀的所有指标
+     */
+    private final Map<String, PrefixMeters> meters = new ConcurrentHashMap<>();
+    /**
+     * 已经出现过的前缀，写时复制，前缀的个数很少，逐个用 startsWith 匹配
+     */
+    private volatile PrefixMeters[] known = new PrefixMeters[0];
+
+    public CacheMetrics(MeterRegistry registry, HotKeyDetector hotKeyDetector, CacheStats cacheStats,
+                        @Value("${hmdp.cache.metrics.histogram:true}") boolean histogram) {
+        this.registry = registry;
+        this.histogram = histogram;
+        // 热点key和各层命中统计已经有计数，直接导出
+        Gauge.builder("cache.hot.keys", hotKeyDetector, d -> d.hotKeyCount()).register(registry);
+        Gauge.builder("cache.hot.pinned", hotKeyDetector, d -> d.pinnedCount()).register(registry);
+        FunctionCounter.builder("cache.hot.replica.hits", hotKeyDetector, d -> d.replicaHitCount()).register(registry);
+        FunctionCounter.builder("cache.hot.promotions", hotKeyDetector, d -> d.promotionCount()).register(registry);
+        Gauge.builder("cache.hit.ratio", cacheStats, s -> s.l1HitRatio()).tag("level", "l1").register(registry);
+        Gauge.builder("cache.hit.ratio", cacheStats, s -> s.l2HitRatio()).tag("level", "l2").register(registry);
+    }
+
+    /***
+     * 记录一次查询的结果
+     * @param key 完整的key或者key前缀
+     * @param strategy 查询方式
+     * @param result 查询结果
+     */
+    public void recordRequest(String key, String strategy, String result) {
+        PrefixMeters m = meters(key);
+        m.requests.computeIfAbsent(strategy, k -> new ConcurrentHashMap<>())
+                .computeIfAbsent(result, k -> Counter.builder("cache.requests")
+                        .tag("prefix", m.prefix).tag("strategy", strategy).tag("result", result)
+                        .register(registry))
+                .increment();
+    }
+
+    public void recordLock(String key, String result) {
+        PrefixMeters m = meters(key);
+        m.locks.computeIfAbsent(result, k -> Counter.builder("cache.lock")
+                .tag("prefix", m.prefix).tag("result", result)
+                .register(registry)).increment();
+    }
+
+    /***
+     * @param op get或mget
+     * @param startNanos System.nanoTime() 开始时间
+     */
+    public void recordRedisRead(String key, String op, long startNanos) {
+        PrefixMeters m = meters(key);
+        m.redisReads.computeIfAbsent(op, k -> timer("cache.redis.read", m.prefix, "op", op, REDIS_READ_MIN, REDIS_READ_MAX))
+                .record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void recordDbLoad(String key, String strategy, long startNanos) {
+        PrefixMeters m = meters(key);
+        m.dbLoads.computeIfAbsent(strategy, k -> timer("cache.db.load", m.prefix, "strategy", strategy, DB_LOAD_MIN, DB_LOAD_MAX))
+                .record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /***
+     * @param op encode或decode
+     */
+    public void recordCodec(String key, String op, long startNanos) {
+        PrefixMeters m = meters(key);
+        m.codecs.computeIfAbsent(op, k -> timer("cache.codec", m.prefix, "op", op, CODEC_MIN, CODEC_MAX))
+                .record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private PrefixMeters meters(String key) {
+        // 1. 传入的本身就是前缀
+        PrefixMeters m = meters.get(key);
+        if (m != null) {
+            return m;
+        }
+        // 2. 匹配已知的前缀，剩下的部分不能再有冒号，和 prefixOf 的结果一致
+        for (PrefixMeters candidate : known) {
+            String prefix = candidate.prefix;
+            if (key.startsWith(prefix) && key.indexOf(':', prefix.length()) < 0) {
+                return candidate;
+            }
+        }
+        // 3. 新的前缀，只有第一次出现时截取
+        return register(prefixOf(key));
+    }
+
+    private synchronized PrefixMeters register(String prefix) {
+        PrefixMeters m = meters.computeIfAbsent(prefix, PrefixMeters::new);
+        for (PrefixMeters candidate : known) {
+            if (candidate == m) {
+                return m;
+            }
+        }
+        PrefixMeters[] copy = Arrays.copyOf(known, known.length + 1);
+        copy[known.length] = m;
+        known = copy;
+        return m;
+    }
+
+    /***
+     * 直方图的桶数和范围有关，按指标实际的耗时范围设置，范围之外的值落在最小或者最大的桶里
+     */
+    private Timer timer(String name, String prefix, String tagKey, String tagValue, Duration min, Duration max) {
+        return Timer.builder(name)
+                .tag("prefix", prefix).tag(tagKey, tagValue)
+                .publishPercentileHistogram(histogram)
+                .minimumExpectedValue(min)
+                .maximumExpectedValue(max)
+                .register(registry);
+    }
+
+    /***
+     * key中最后一个冒号及之前的部分，例如 cache:shop:1 -> cache:shop:，保证标签的取值个数有限
+     */
+    static String prefixOf(String key) {
+        int index = key.lastIndexOf(':');
+        return index < 0 ? key : key.substring(0, index + 1);
+    }
+
+    /***
+     * 一个前缀的所有指标，按标签的取值缓存
+     */
+    private static class PrefixMeters {
+        private final String prefix;
+        /**
+         * strategy -> result -> 计数
+         */
+        private final Map<String, Map<String, Counter>> requests = new ConcurrentHashMap<>();
+        private final Map<String, Counter> locks = new ConcurrentHashMap<>();
+        private final Map<String, Timer> redisReads = new ConcurrentHashMap<>();
+        private final Map<String, Timer> dbLoads = new ConcurrentHashMap<>();
+        private final Map<String, Timer> codecs = new ConcurrentHashMap<>();
+
+        private PrefixMeters(String prefix) {
+            this.prefix = prefix;
+        }
+    }
+}
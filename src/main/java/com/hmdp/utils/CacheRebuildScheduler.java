@@ -0,0 +1,149 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/***
+ * 所有逻辑过期缓存共用的重建线程池：
+ * 1. 同一个key在排队或者执行时不会重复提交；
+ * 2. 队列有界，满了直接丢弃新任务，调用者继续返回旧数据，下次读取时再尝试重建；
+ * 3. 按照key的访问频率排序，越热的key越先重建；
+ * 4. 重建中的异常会被记录并计数，不会被吞掉；
+ * 5. spring关闭时停止接收任务，等待正在执行的重建结束
+ */
+@Slf4j
+@Component
+public class CacheRebuildScheduler {
+    private final HotKeyDetector hotKeyDetector;
+    private final int queueCapacity;
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * 排队或者正在执行的key
+     */
+    private final Map<String, Task> pending = new ConcurrentHashMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+
+    private final Counter succeeded;
+    private final Counter failed;
+    private final Counter deduped;
+    private final Counter dropped;
+    private final Timer duration;
+
+    public CacheRebuildScheduler(HotKeyDetector hotKeyDetector, MeterRegistry registry,
+                                 @Value("${hmdp.cache.rebuild.threads:10}") int threads,
+                                 @Value("${hmdp.cache.rebuild.queue-capacity:1000}") int queueCapacity) {
+        this.hotKeyDetector = hotKeyDetector;
+        this.queueCapacity = queueCapacity;
+        AtomicInteger index = new AtomicInteger();
+        // 队列本身不限长度，由pending的数量控制
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<>(),
+                r -> new Thread(r, "cache-rebuild-" + index.incrementAndGet()));
+        Gauge.builder("cache.rebuild.queue", executor, e -> e.getQueue().size()).register(registry);
+        Gauge.builder("cache.rebuild.active", executor, ThreadPoolExecutor::getActiveCount).register(registry);
+        this.succeeded = Counter.builder("cache.rebuild").tag("result", "success").register(registry);
+        this.failed = Counter.builder("cache.rebuild").tag("result", "failed").register(registry);
+        this.deduped = Counter.builder("cache.rebuild").tag("result", "deduped").register(registry);
+        this.dropped = Counter.builder("cache.rebuild").tag("result", "dropped").register(registry);
+        this.duration = Timer.builder("cache.rebuild.duration").register(registry);
+    }
+
+    @PreDestroy
+    private void destroy() throws InterruptedException {
+        // 排队中的重建直接丢弃，只等待正在执行的
+        executor.shutdown();
+        executor.getQueue().clear();
+        if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+            executor.shutdownNow();
+        }
+    }
+
+    /***
+     * 提交重建任务
+     * @param key 重建的缓存key，用于去重和计算优先级
+     * @param rebuild 重建逻辑
+     * @return 是否提交成功，同一个key已经在排队、队列已满或者已经关闭时返回false，调用者继续使用旧数据
+     */
+    public boolean submit(String key, Runnable rebuild) {
+        if (executor.isShutdown()) {
+            return false;
+        }
+        // 1. 队列已满，丢弃
+        if (pending.size() >= queueCapacity) {
+            dropped.increment();
+            log.warn("缓存重建队列已满，丢弃重建任务, key: {}", key);
+            return false;
+        }
+        // 2. 去重
+        Task task = new Task(key, rebuild, hotKeyDetector.frequency(key), sequence.incrementAndGet());
+        if (pending.putIfAbsent(key, task) != null) {
+            deduped.increment();
+            return false;
+        }
+        try {
+            executor.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            pending.remove(key, task);
+            dropped.increment();
+            return false;
+        }
+    }
+
+    /***
+     * 排队中的任务数量
+     */
+    public int queueSize() {
+        return executor.getQueue().size();
+    }
+
+    private class Task implements Runnable, Comparable<Task> {
+        private final String key;
+        private final Runnable rebuild;
+        private final long frequency;
+        private final long seq;
+
+        private Task(String key, Runnable rebuild, long frequency, long seq) {
+            this.key = key;
+            this.rebuild = rebuild;
+            this.frequency = frequency;
+            this.seq = seq;
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            try {
+                rebuild.run();
+                succeeded.increment();
+            } catch (Exception e) {
+                failed.increment();
+                log.error("缓存重建失败, key: {}", key, e);
+            } finally {
+                duration.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                pending.remove(key, this);
+            }
+        }
+
+        /***
+         * 访问频率高的排在前面，相同时先提交的排在前面
+         */
+        @Override
+        public int compareTo(Task o) {
+            int c = Long.compare(o.frequency, frequency);
+            return c != 0 ? c : Long.compare(seq, o.seq);
+        }
+    }
+}
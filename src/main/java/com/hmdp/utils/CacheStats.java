@@ -0,0 +1,78 @@
+package com.hmdp.utils;
+
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/***
+ * 缓存命中统计。分别统计本地一级缓存(L1)和redis二级缓存(L2)的命中情况，LongAdder保证高并发下的计数开销足够小
+ */
+@Component
+public class CacheStats {
+    private final LongAdder l1Hits = new LongAdder();
+    private final LongAdder l1Misses = new LongAdder();
+    private final LongAdder l2Hits = new LongAdder();
+    private final LongAdder l2NullHits = new LongAdder();
+    private final LongAdder l2Misses = new LongAdder();
+
+    public void recordL1Hit() {
+        l1Hits.increment();
+    }
+
+    public void recordL1Miss() {
+        l1Misses.increment();
+    }
+
+    public void recordL2Hit() {
+        l2Hits.increment();
+    }
+
+    /***
+     * 命中了缓存的空值，同样算作redis命中，但单独计数便于观察缓存穿透
+     */
+    public void recordL2NullHit() {
+        l2NullHits.increment();
+    }
+
+    public void recordL2Miss() {
+        l2Misses.increment();
+    }
+
+    /***
+     * 当前统计数据的快照
+     * @return 各层的命中次数和命中率
+     */
+    public Map<String, Object> snapshot() {
+        long l1Hit = l1Hits.sum();
+        long l1Miss = l1Misses.sum();
+        long l2Hit = l2Hits.sum();
+        long l2NullHit = l2NullHits.sum();
+        long l2Miss = l2Misses.sum();
+
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("l1Hits", l1Hit);
+        map.put("l1Misses", l1Miss);
+        map.put("l1HitRatio", ratio(l1Hit, l1Hit + l1Miss));
+        map.put("l2Hits", l2Hit);
+        map.put("l2NullHits", l2NullHit);
+        map.put("l2Misses", l2Miss);
+        map.put("l2HitRatio", ratio(l2Hit + l2NullHit, l2Hit + l2NullHit + l2Miss));
+        return map;
+    }
+
+    public double l1HitRatio() {
+        long hit = l1Hits.sum();
+        return ratio(hit, hit + l1Misses.sum());
+    }
+
+    public double l2HitRatio() {
+        long hit = l2Hits.sum() + l2NullHits.sum();
+        return ratio(hit, hit + l2Misses.sum());
+    }
+
+    private static double ratio(long hit, long total) {
+        return total == 0 ? 0D : (double) hit / total;
+    }
+}
@@ -0,0 +1,285 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.Shop;
+import com.hmdp.mapper.ShopMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.data.geo.Point;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/***
+ * 店铺缓存预热。启动时(或者手动触发)按id区间把tb_shop分成多个分片并行查询，每个分片用一次pipeline
+ * 写入店铺缓存和GEO集合，避免冷启动时大量请求直接打到数据库。
+ * 启动时同步等待预热完成，超时后预热在后台继续；预热结束之前健康检查返回 OUT_OF_SERVICE，
+ * 配合readiness探针，实例在预热结束后才接收流量。多个节点同时启动时只有获取到锁的节点执行预热，
+ * 其他节点等待它写入完成标记之后再就绪，同样最多等待 timeoutSeconds
+ */
+@Slf4j
+@Component
+public class CacheWarmer implements ApplicationRunner, HealthIndicator {
+    private final ShopMapper shopMapper;
+    private final StringRedisTemplate stringRedisTemplate;
+    private final CacheClient cacheClient;
+    private final boolean enabled;
+    /**
+     * 是否写成逻辑过期的格式，必须和读取 cache:shop: 的查询方式一致。
+     * 默认false，queryById 和 queryShopByType 使用的缓存穿透和批量查询读不了 RedisData
+     */
+    private final boolean logicalExpire;
+    private final int chunkSize;
+    private final int parallelism;
+    private final long timeoutSeconds;
+
+    /**
+     * 启动时的预热是否已经结束(完成、失败或者超时)
+     */
+    private volatile boolean startupFinished;
+    private volatile CompletableFuture<Map<String, Object>> current;
+    private volatile Map<String, Object> lastResult = Collections.emptyMap();
+
+    public CacheWarmer(ShopMapper shopMapper, StringRedisTemplate stringRedisTemplate, CacheClient cacheClient,
+                       @Value("${hmdp.cache.warmup.enabled:false}") boolean enabled,
+                       @Value("${hmdp.cache.warmup.logical-expire:false}") boolean logicalExpire,
+                       @Value("${hmdp.cache.warmup.chunk-size:1000}") int chunkSize,
+                       @Value("${hmdp.cache.warmup.parallelism:4}") int parallelism,
+                       @Value("${hmdp.cache.warmup.timeout-seconds:60}") long timeoutSeconds) {
+        this.shopMapper = shopMapper;
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.cacheClient = cacheClient;
+        this.enabled = enabled;
+        this.logicalExpire = logicalExpire;
+        this.chunkSize = chunkSize;
+        this.parallelism = parallelism;
+        this.timeoutSeconds = timeoutSeconds;
+        this.startupFinished = !enabled;
+    }
+
+    /***
+     * 启动时同步预热，最多等待 timeoutSeconds
+     */
+    @Override
+    public void run(ApplicationArguments args) {
+        if (!enabled) {
+            return;
+        }
+        try {
+            warmUpAsync().get(timeoutSeconds, TimeUnit.SECONDS);
+        } catch (TimeoutException e) {
+            log.warn("缓存预热超过{}秒，在后台继续执行", timeoutSeconds);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // 预热失败不影响启动，只是冷启动时数据库压力大一些
+            log.error("缓存预热失败", e.getCause());
+        } finally {
+            startupFinished = true;
+        }
+    }
+
+    /***
+     * 开始预热，已经在预热时返回正在进行的那一次
+     * @return 预热结果
+     */
+    public synchronized CompletableFuture<Map<String, Object>> warmUpAsync() {
+        if (current != null && !current.isDone()) {
+            return current;
+        }
+        CompletableFuture<Map<String, Object>> future = new CompletableFuture<>();
+        Thread thread = new Thread(() -> {
+            try {
+                Map<String, Object> result = warmUp();
+                lastResult = result;
+                future.complete(result);
+            } catch (Throwable e) {
+                Map<String, Object> result = new LinkedHashMap<>();
+                result.put("status", "failed");
+                result.put("error", e.getMessage());
+                lastResult = result;
+                future.completeExceptionally(e);
+            }
+        }, "cache-warmup");
+        thread.setDaemon(true);
+        current = future;
+        thread.start();
+        return future;
+    }
+
+    /***
+     * 当前或者最近一次预热的状态
+     */
+    public Map<String, Object> status() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("enabled", enabled);
+        map.put("running", current != null && !current.isDone());
+        map.put("startupFinished", startupFinished);
+        map.put("last", lastResult);
+        return map;
+    }
+
+    @Override
+    public Health health() {
+        if (!startupFinished) {
+            return Health.outOfService().withDetail("warmup", "running").build();
+        }
+        return Health.up().withDetails(status()).build();
+    }
+
+    private Map<String, Object> warmUp() throws InterruptedException {
+        long begin = System.currentTimeMillis();
+        Map<String, Object> result = new LinkedHashMap<>();
+        // 1. 获取分布式锁，其他节点正在预热时跳过，等待那个节点预热结束
+        SimpleRedisLock lock = new SimpleRedisLock(CACHE_WARMUP_LOCK, stringRedisTemplate);
+        if (!lock.tryLock(Math.max(timeoutSeconds * 10, 600))) {
+            log.info("其他节点正在预热缓存，跳过，等待预热结束");
+            result.put("status", "skipped");
+            result.put("holderFinished", waitForHolder(begin));
+            return result;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+            private final AtomicInteger index = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "cache-warmup-" + index.incrementAndGet());
+            }
+        });
+        try {
+            // 2. 按id区间切分
+            List<Object> maxIds = shopMapper.selectObjs(new QueryWrapper<Shop>().select("max(id)"));
+            long maxId = maxIds.isEmpty() || maxIds.get(0) == null ? 0 : Long.parseLong(maxIds.get(0).toString());
+            LongAdder shops = new LongAdder();
+            List<Future<?>> futures = new ArrayList<>();
+            for (long from = 1; from <= maxId; from += chunkSize) {
+                long start = from;
+                long end = Math.min(from + chunkSize - 1, maxId);
+                // 3. 各个分片并行查询、写入
+                futures.add(executor.submit(() -> shops.add(warmUpChunk(start, end))));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    // 单个分片失败不影响其他分片
+                    log.error("缓存预热分片失败", e.getCause());
+                }
+            }
+            long cost = System.currentTimeMillis() - begin;
+            log.info("缓存预热完成, shops: {}, chunks: {}, cost: {}ms", shops.sum(), futures.size(), cost);
+            result.put("status", "done");
+            result.put("shops", shops.sum());
+            result.put("chunks", futures.size());
+            result.put("costMillis", cost);
+            result.put("finishTime", LocalDateTime.now().toString());
+            return result;
+        } finally {
+            executor.shutdownNow();
+            // 先写完成标记再释放锁，等待的节点看到锁已经释放时一定能读到标记
+            markDone();
+            lock.unlock();
+        }
+    }
+
+    /***
+     * 写入完成标记，值为完成时间。预热失败也写入，失败不影响启动，等待的节点不需要一直等下去
+     */
+    private void markDone() {
+        try {
+            stringRedisTemplate.opsForValue().set(CACHE_WARMUP_DONE_KEY, String.valueOf(System.currentTimeMillis()),
+                    CACHE_WARMUP_DONE_TTL, TimeUnit.MINUTES);
+        } catch (Exception e) {
+            log.error("写入缓存预热完成标记失败", e);
+        }
+    }
+
+    /***
+     * 等待持有锁的节点预热结束，最多等待 timeoutSeconds
+     * @param begin 本节点开始预热的时间，之前写入的完成标记是上一次预热的
+     * @return 持有锁的节点是否已经预热结束；锁已经释放却没有新的标记说明那个节点异常退出，也不再等待
+     */
+    private boolean waitForHolder(long begin) throws InterruptedException {
+        String lockKey = CACHE_LOCK_KEY + CACHE_WARMUP_LOCK;
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(timeoutSeconds);
+        while (System.currentTimeMillis() < deadline) {
+            // 先检查锁再读标记，和持有者先写标记再释放锁的顺序相反
+            boolean held = Boolean.TRUE.equals(stringRedisTemplate.hasKey(lockKey));
+            String done = stringRedisTemplate.opsForValue().get(CACHE_WARMUP_DONE_KEY);
+            if (done != null && Long.parseLong(done) >= begin) {
+                return true;
+            }
+            if (!held) {
+                log.warn("持有预热锁的节点没有写入完成标记就释放了锁");
+                return false;
+            }
+            Thread.sleep(500);
+        }
+        log.warn("等待其他节点预热超过{}秒", timeoutSeconds);
+        return false;
+    }
+
+    /***
+     * 预热 [start, end] 区间内的店铺，一次pipeline写入店铺缓存和GEO
+     * @return 店铺数量
+     */
+    private int warmUpChunk(long start, long end) {
+        List<Shop> shops = shopMapper.selectList(new QueryWrapper<Shop>().between("id", start, end));
+        if (shops.isEmpty()) {
+            return 0;
+        }
+        ExpiryPolicy policy = cacheClient.expiryPolicy(CACHE_SHOP_KEY, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        // 序列化放在pipeline外面，不占用连接。每个key单独计算随机的过期时间，预热的key不会同时过期
+        List<byte[]> keys = new ArrayList<>(shops.size());
+        List<byte[]> values = new ArrayList<>(shops.size());
+        long[] redisTtls = new long[shops.size()];
+        for (int i = 0; i < shops.size(); i++) {
+            Shop shop = shops.get(i);
+            String key = CACHE_SHOP_KEY + shop.getId();
+            long ttlSeconds = policy.nextTtlSeconds();
+            Object value = shop;
+            if (logicalExpire) {
+                RedisData redisData = new RedisData();
+                redisData.setData(shop);
+                redisData.setExpireTime(LocalDateTime.now().plusSeconds(ttlSeconds));
+                value = redisData;
+                redisTtls[i] = 0;
+            } else {
+                redisTtls[i] = policy.redisTtlSeconds(ttlSeconds);
+            }
+            keys.add(key.getBytes(StandardCharsets.UTF_8));
+            values.add(cacheClient.encode(key, value));
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (int i = 0; i < shops.size(); i++) {
+                Shop shop = shops.get(i);
+                // 逻辑过期的数据不设置过期时间
+                if (redisTtls[i] > 0) {
+                    connection.setEx(keys.get(i), redisTtls[i], values.get(i));
+                } else {
+                    connection.set(keys.get(i), values.get(i));
+                }
+                if (shop.getX() != null && shop.getY() != null) {
+                    connection.geoAdd((SHOP_GEO_KEY + shop.getTypeId()).getBytes(StandardCharsets.UTF_8),
+                            new Point(shop.getX(), shop.getY()),
+                            shop.getId().toString().getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            return null;
+        });
+        return shops.size();
+    }
+}
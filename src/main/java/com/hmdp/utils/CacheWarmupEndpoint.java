@@ -0,0 +1,40 @@
+package com.hmdp.utils;
+
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+
+/***
+ * 店铺缓存预热：GET /actuator/cachewarmup 查询状态，POST 手动触发。
+ * 预热会全量扫描tb_shop，不放在业务接口中，是否通过http暴露由 management.endpoints.web.exposure 控制
+ */
+@Component
+@Endpoint(id = "cachewarmup")
+public class CacheWarmupEndpoint {
+    private final CacheWarmer cacheWarmer;
+
+    public CacheWarmupEndpoint(CacheWarmer cacheWarmer) {
+        this.cacheWarmer = cacheWarmer;
+    }
+
+    /***
+     * @return 预热状态和最近一次的结果
+     */
+    @ReadOperation
+    public Map<String, Object> status() {
+        return cacheWarmer.status();
+    }
+
+    /***
+     * 手动触发预热，已经在预热时不会重复执行
+     * @return 预热状态
+     */
+    @WriteOperation
+    public Map<String, Object> warmUp() {
+        cacheWarmer.warmUpAsync();
+        return cacheWarmer.status();
+    }
+}
@@ -0,0 +1,121 @@
+package com.hmdp.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/***
+ * 压缩的二进制格式：格式标识 + 原始长度 + deflate压缩后的二进制对象。
+ * 序列化结果小于阈值时压缩得不偿失，直接写成未压缩的二进制格式
+ */
+public class DeflateCacheCodec implements CacheCodec {
+    public static final byte FORMAT = 0x02;
+    /**
+     * 解压后的最大长度，缓存的单个对象不会超过这个大小
+     */
+    static final int MAX_LENGTH = 16 * 1024 * 1024;
+    /**
+     * deflate的最大压缩比约为1032:1，头部记录的长度超过这个比例说明数据已经损坏
+     */
+    static final int MAX_RATIO = 1032;
+
+    private final BinaryCacheCodec binaryCodec;
+    private final int threshold;
+
+    public DeflateCacheCodec(BinaryCacheCodec binaryCodec, int threshold) {
+        this.binaryCodec = binaryCodec;
+        this.threshold = threshold;
+    }
+
+    @Override
+    public byte format() {
+        return FORMAT;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        byte[] payload = binaryCodec.encodePayload(value);
+        if (payload.length < threshold) {
+            byte[] bytes = new byte[payload.length + 1];
+            bytes[0] = BinaryCacheCodec.FORMAT;
+            System.arraycopy(payload, 0, bytes, 1, payload.length);
+            return bytes;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(payload.length / 2 + 8);
+        out.write(FORMAT);
+        // 原始长度，4个字节
+        out.write(payload.length >>> 24);
+        out.write(payload.length >>> 16);
+        out.write(payload.length >>> 8);
+        out.write(payload.length);
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(payload);
+            deflater.finish();
+            byte[] buf = new byte[512];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buf);
+                out.write(buf, 0, n);
+            }
+        } finally {
+            deflater.end();
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, Class<T> type) {
+        if (bytes[0] == BinaryCacheCodec.FORMAT) {
+            return binaryCodec.decode(bytes, type);
+        }
+        return binaryCodec.decodePayload(inflate(bytes), 0, type, null);
+    }
+
+    @Override
+    public <T> RedisData decodeLogical(byte[] bytes, Class<T> type) {
+        if (bytes[0] == BinaryCacheCodec.FORMAT) {
+            return binaryCodec.decodeLogical(bytes, type);
+        }
+        return binaryCodec.decodePayload(inflate(bytes), 0, RedisData.class, type);
+    }
+
+    private static byte[] inflate(byte[] bytes) {
+        if (bytes.length < 5 || bytes[0] != FORMAT) {
+            throw new IllegalArgumentException("不是压缩的二进制缓存格式");
+        }
+        int length = (bytes[1] & 0xFF) << 24 | (bytes[2] & 0xFF) << 16 | (bytes[3] & 0xFF) << 8 | (bytes[4] & 0xFF);
+        // 分配数组之前先校验头部的长度，损坏的头部不能导致分配超大的数组
+        int compressed = bytes.length - 5;
+        if (length < 0 || length > MAX_LENGTH || (long) length > (long) compressed * MAX_RATIO) {
+            throw new IllegalArgumentException("压缩的缓存数据长度错误: " + length + ", 压缩后的长度: " + compressed);
+        }
+        byte[] payload = new byte[length];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(bytes, 5, bytes.length - 5);
+            int n = 0;
+            // 一直解压到压缩流结束，包括最后的校验和，数据被截断时能够发现
+            byte[] extra = new byte[1];
+            while (!inflater.finished()) {
+                int read = n < length ? inflater.inflate(payload, n, length - n) : inflater.inflate(extra);
+                // 数据被截断或者损坏时没有更多的输入，不能继续循环
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalArgumentException("压缩的缓存数据不完整");
+                }
+                n += read;
+                if (n > length) {
+                    break;
+                }
+            }
+            if (n != length) {
+                throw new IllegalArgumentException("解压后的长度不一致, expected: " + length + ", actual: " + n);
+            }
+            return payload;
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("解压缓存数据失败", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
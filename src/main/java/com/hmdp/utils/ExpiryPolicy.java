@@ -0,0 +1,90 @@
+package com.hmdp.utils;
+
+import lombok.Data;
+import lombok.experimental.Accessors;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.CACHE_NULL_TTL;
+
+/***
+ * 某个key前缀的缓存过期策略，单位都是秒。
+ * 每次写入时在基础ttl上加一个 [0, jitterSeconds] 的随机值，同一批写入的key不会在同一时刻过期(缓存雪崩)。
+ * staleSeconds 大于0时开启 stale-while-revalidate：
+ * 普通缓存的实际过期时间再延长 staleSeconds，最后这段时间内读到的数据视为过期数据，直接返回并在后台刷新。
+ * 逻辑过期的缓存在redis中永不过期，未命中时不查询数据库，只用随机值错开逻辑过期时间
+ */
+@Data
+@Accessors(chain = true)
+public class ExpiryPolicy {
+    /**
+     * 基础ttl
+     */
+    private long ttlSeconds;
+    /**
+     * 随机增加的最大时间
+     */
+    private long jitterSeconds;
+    /**
+     * 空值的ttl，同样会加随机值，但最多加上它本身的一半
+     */
+    private long nullTtlSeconds = TimeUnit.MINUTES.toSeconds(CACHE_NULL_TTL);
+    /**
+     * 过期之后仍然可以返回旧数据的时间
+     */
+    private long staleSeconds;
+
+    /***
+     * 固定ttl、没有随机值的策略，和之前直接传入过期时间的效果一样
+     */
+    public static ExpiryPolicy of(long time, TimeUnit unit) {
+        return new ExpiryPolicy().setTtlSeconds(unit.toSeconds(time));
+    }
+
+    /***
+     * 使用调用者传入的基础ttl，其余配置不变
+     */
+    public ExpiryPolicy withTtl(long time, TimeUnit unit) {
+        long seconds = unit.toSeconds(time);
+        if (seconds == ttlSeconds) {
+            return this;
+        }
+        return new ExpiryPolicy()
+                .setTtlSeconds(seconds)
+                .setJitterSeconds(jitterSeconds)
+                .setNullTtlSeconds(nullTtlSeconds)
+                .setStaleSeconds(staleSeconds);
+    }
+
+    /***
+     * 本次写入的ttl，基础ttl加上随机值
+     */
+    public long nextTtlSeconds() {
+        return ttlSeconds + random(jitterSeconds);
+    }
+
+    public long nextNullTtlSeconds() {
+        return nullTtlSeconds + random(Math.min(jitterSeconds, nullTtlSeconds / 2));
+    }
+
+    /***
+     * 普通缓存写入redis的过期时间，包括stale的部分
+     * @param ttlSeconds nextTtlSeconds() 的结果
+     */
+    public long redisTtlSeconds(long ttlSeconds) {
+        return ttlSeconds + staleSeconds;
+    }
+
+    /***
+     * 根据redis中剩余的过期时间判断数据是否已经进入stale阶段
+     * @param remainMillis PTTL 的结果，负数表示没有过期时间或者key不存在
+     */
+    public boolean isStale(long remainMillis) {
+        return staleSeconds > 0 && remainMillis >= 0 && remainMillis < TimeUnit.SECONDS.toMillis(staleSeconds);
+    }
+
+    private static long random(long bound) {
+        return bound <= 0 ? 0 : ThreadLocalRandom.current().nextLong(bound + 1);
+    }
+}
@@ -0,0 +1,302 @@
+package com.hmdp.utils;
+
+import cn.hutool.cache.Cache;
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.core.lang.hash.MurmurHash;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hmdp.utils.RedisConstants.CACHE_INVALIDATE_CHANNEL;
+
+/***
+ * 单节点的热点key探测。按采样率记录key的访问，用count-min sketch估算访问次数，再维护一个估算次数最大的top-K表。
+ * 每个统计窗口结束时计数减半(衰减)，估算值近似于最近几个窗口的访问量；top-K中超过阈值的key即为热点key。
+ * 热点key的值会被复制到一个很短ttl的本地副本中，读取时不再访问redis，分散单个redis分片的压力。
+ * 数据更新时和一级缓存一样通过失效广播删除本地副本
+ */
+@Slf4j
+@Component
+public class HotKeyDetector {
+    /**
+     * count-min sketch的行数和每行的计数器个数(2的幂)
+     */
+    private static final int DEPTH = 4;
+    private static final int WIDTH = 1 << 14;
+
+    private final RedisMessageListenerContainer listenerContainer;
+    private final boolean enabled;
+    /**
+     * 每 sampleRate 次访问记录一次，每次记录加 sampleRate，估算值仍然是实际的访问次数
+     */
+    private final int sampleRate;
+    /**
+     * 一个窗口内的访问次数达到阈值才算热点
+     */
+    private final long threshold;
+    private final int topK;
+
+    private final AtomicLongArray sketch = new AtomicLongArray(DEPTH * WIDTH);
+    /**
+     * 当前估算次数最大的K个key，只有新key进入时才加锁，新增和淘汰都在锁内，保证不超过K个
+     */
+    private final Map<String, Long> top = new ConcurrentHashMap<>();
+    private volatile long topMin;
+    private volatile Set<String> hotKeys = Collections.emptySet();
+
+    /**
+     * 热点key的本地副本，和一级缓存分开，容量小、ttl短
+     */
+    private final Cache<String, Object> replica;
+
+    private final LongAdder replicaHits = new LongAdder();
+    private final LongAdder promotions = new LongAdder();
+
+    public HotKeyDetector(RedisMessageListenerContainer listenerContainer,
+                          @Value("${hmdp.cache.hot-key.enabled:false}") boolean enabled,
+                          @Value("${hmdp.cache.hot-key.sample-rate:1}") int sampleRate,
+                          @Value("${hmdp.cache.hot-key.threshold:1000}") long threshold,
+                          @Value("${hmdp.cache.hot-key.top-k:100}") int topK,
+                          @Value("${hmdp.cache.hot-key.replica-ttl-millis:1000}") long replicaTtlMillis) {
+        this.listenerContainer = listenerContainer;
+        this.enabled = enabled;
+        this.sampleRate = Math.max(1, sampleRate);
+        this.threshold = threshold;
+        this.topK = topK;
+        this.replica = CacheUtil.newLRUCache(topK, replicaTtlMillis);
+    }
+
+    @PostConstruct
+    private void init() {
+        // 和一级缓存订阅同一个失效通知
+        listenerContainer.addMessageListener(
+                (message, pattern) -> unpin(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(CACHE_INVALIDATE_CHANNEL));
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /***
+     * 记录一次访问
+     * @param key 完整的key
+     */
+    public void record(String key) {
+        if (!enabled) {
+            return;
+        }
+        if (sampleRate > 1 && ThreadLocalRandom.current().nextInt(sampleRate) != 0) {
+            return;
+        }
+        // 1. 每一行对应的计数器都加上采样率，取最小值作为估算值
+        long[] hash = MurmurHash.hash128(key);
+        long estimate = Long.MAX_VALUE;
+        for (int i = 0; i < DEPTH; i++) {
+            estimate = Math.min(estimate, sketch.addAndGet(index(hash, i), sampleRate));
+        }
+        // 2. 已经在top-K中的key直接更新，不加锁。computeIfPresent是原子的，不会把刚被淘汰的key重新放回去
+        long current = estimate;
+        if (top.computeIfPresent(key, (k, v) -> current) != null) {
+            return;
+        }
+        // 3. 新key的估算值超过top-K中的最小值才尝试进入
+        if (top.size() < topK || estimate > topMin) {
+            admit(key, estimate);
+        }
+    }
+
+    /***
+     * 查询热点key的本地副本
+     * @return 不是热点key、副本已过期或者类型不符时返回null
+     */
+    public <R> R getPinned(String key, Class<R> type) {
+        if (!enabled || !hotKeys.contains(key)) {
+            return null;
+        }
+        Object value = replica.get(key, false);
+        if (type.isInstance(value)) {
+            replicaHits.increment();
+            return type.cast(value);
+        }
+        return null;
+    }
+
+    /***
+     * 从redis或数据库查到值之后调用，只有热点key才会放入本地副本
+     */
+    public void pinIfHot(String key, Object value) {
+        if (!enabled || value == null || !hotKeys.contains(key)) {
+            return;
+        }
+        replica.put(key, value);
+    }
+
+    public void unpin(String key) {
+        if (enabled) {
+            replica.remove(key);
+        }
+    }
+
+    public boolean isHot(String key) {
+        return hotKeys.contains(key);
+    }
+
+    /***
+     * 最近几个窗口内估算的访问次数，未开启时返回0
+     */
+    public long frequency(String key) {
+        return enabled ? estimate(key) : 0;
+    }
+
+    /***
+     * 当前的top-K，按估算的访问次数从大到小排列
+     * @return key、估算次数、是否热点、是否有本地副本
+     */
+    public List<Map<String, Object>> topKeys() {
+        List<Map.Entry<String, Long>> entries = new ArrayList<>(top.entrySet());
+        entries.sort(Map.Entry.<String, Long>comparingByValue().reversed());
+        List<Map<String, Object>> list = new ArrayList<>(entries.size());
+        Set<String> hot = hotKeys;
+        for (Map.Entry<String, Long> entry : entries) {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("key", entry.getKey());
+            map.put("count", entry.getValue());
+            map.put("hot", hot.contains(entry.getKey()));
+            map.put("pinned", replica.containsKey(entry.getKey()));
+            list.add(map);
+        }
+        return list;
+    }
+
+    public int hotKeyCount() {
+        return hotKeys.size();
+    }
+
+    public int pinnedCount() {
+        return replica.size();
+    }
+
+    public long replicaHitCount() {
+        return replicaHits.sum();
+    }
+
+    public long promotionCount() {
+        return promotions.sum();
+    }
+
+    public Map<String, Object> snapshot() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("enabled", enabled);
+        map.put("hotKeys", hotKeyCount());
+        map.put("pinnedKeys", pinnedCount());
+        map.put("replicaHits", replicaHitCount());
+        map.put("promotions", promotionCount());
+        return map;
+    }
+
+    /***
+     * 窗口结束：计数减半，重新计算top-K和热点key
+     */
+    @Scheduled(fixedDelayString = "${hmdp.cache.hot-key.window-millis:1000}")
+    public void rotate() {
+        if (!enabled) {
+            return;
+        }
+        // 1. 衰减，并发的累加可能丢失一部分，只影响估算精度
+        for (int i = 0; i < sketch.length(); i++) {
+            long v = sketch.get(i);
+            if (v != 0) {
+                sketch.set(i, v >>> 1);
+            }
+        }
+        synchronized (this) {
+            // 2. 根据衰减后的计数更新top-K，已经冷却的key移出
+            Set<String> hot = new HashSet<>();
+            Iterator<Map.Entry<String, Long>> it = top.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, Long> entry = it.next();
+                long estimate = estimate(entry.getKey());
+                if (estimate == 0) {
+                    it.remove();
+                    continue;
+                }
+                entry.setValue(estimate);
+                // 衰减前达到阈值即为热点，衰减后就是阈值的一半
+                if (estimate * 2 >= threshold) {
+                    hot.add(entry.getKey());
+                }
+            }
+            topMin = minOfTop();
+            // 3. 新晋的热点key
+            for (String key : hot) {
+                if (!hotKeys.contains(key)) {
+                    promotions.increment();
+                    log.info("发现热点key: {}", key);
+                }
+            }
+            hotKeys = Collections.unmodifiableSet(hot);
+        }
+    }
+
+    private synchronized void admit(String key, long estimate) {
+        // 其他线程已经把这个key放进来了，只更新次数，不能再淘汰一个key
+        if (top.computeIfPresent(key, (k, v) -> estimate) != null) {
+            return;
+        }
+        if (top.size() >= topK) {
+            // 淘汰估算次数最小的key，K很小，直接遍历
+            String minKey = null;
+            long min = Long.MAX_VALUE;
+            for (Map.Entry<String, Long> entry : top.entrySet()) {
+                if (entry.getValue() < min) {
+                    min = entry.getValue();
+                    minKey = entry.getKey();
+                }
+            }
+            if (minKey == null || estimate <= min) {
+                topMin = min;
+                return;
+            }
+            top.remove(minKey);
+        }
+        top.put(key, estimate);
+        topMin = minOfTop();
+    }
+
+    private long minOfTop() {
+        long min = Long.MAX_VALUE;
+        for (Long count : top.values()) {
+            min = Math.min(min, count);
+        }
+        return top.size() < topK ? 0 : min;
+    }
+
+    private long estimate(String key) {
+        long[] hash = MurmurHash.hash128(key);
+        long estimate = Long.MAX_VALUE;
+        for (int i = 0; i < DEPTH; i++) {
+            estimate = Math.min(estimate, sketch.get(index(hash, i)));
+        }
+        return estimate;
+    }
+
+    /***
+     * 第i行的计数器下标，使用两个哈希值组合出多个哈希函数
+     */
+    private static int index(long[] hash, int row) {
+        long combined = hash[0] + row * hash[1];
+        return row * WIDTH + (int) (combined & (WIDTH - 1));
+    }
+}
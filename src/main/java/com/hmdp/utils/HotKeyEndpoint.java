@@ -0,0 +1,32 @@
+package com.hmdp.utils;
+
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/***
+ * 查询当前节点的热点key：/actuator/hotkeys。
+ * 返回的是真实的缓存key，不放在业务接口中，是否通过http暴露由 management.endpoints.web.exposure 控制
+ */
+@Component
+@Endpoint(id = "hotkeys")
+public class HotKeyEndpoint {
+    private final HotKeyDetector hotKeyDetector;
+
+    public HotKeyEndpoint(HotKeyDetector hotKeyDetector) {
+        this.hotKeyDetector = hotKeyDetector;
+    }
+
+    /***
+     * @return 热点key的统计和访问次数最多的key
+     */
+    @ReadOperation
+    public Map<String, Object> hotKeys() {
+        Map<String, Object> map = new LinkedHashMap<>(hotKeyDetector.snapshot());
+        map.put("keys", hotKeyDetector.topKeys());
+        return map;
+    }
+}
@@ -1,5 +1,7 @@
 package com.hmdp.utils;
 
+import java.util.concurrent.TimeUnit;
+
 /**
  *
  */
@@ -10,6 +12,15 @@ public interface ILock {
      */
     boolean tryLock(long timeoutSec);
 
+    /**
+     * 尝试获取锁，获取不到时最多等待 waitTime
+     * @param waitTime 最多等待多久，0表示不等待
+     * @param leaseTime 锁的有效期，小于等于0时由看门狗自动续期，直到unlock
+     * @param unit
+     * @return 是否获取成功
+     */
+    boolean tryLock(long waitTime, long leaseTime, TimeUnit unit) throws InterruptedException;
+
     /**
      *
      */
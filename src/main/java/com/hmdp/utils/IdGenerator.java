@@ -0,0 +1,13 @@
+package com.hmdp.utils;
+
+/***
+ * 全局唯一id生成器
+ */
+public interface IdGenerator {
+    /***
+     * 生成下一个id
+     * @param keyPrefix 业务前缀，不同业务的序列号可以独立计数
+     * @return
+     */
+    long nextId(String keyPrefix);
+}
@@ -0,0 +1,37 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+
+import java.nio.charset.StandardCharsets;
+
+/***
+ * JSON格式，和之前直接使用 JSONUtil 写入的数据完全一致
+ */
+public class JsonCacheCodec implements CacheCodec {
+    @Override
+    public byte format() {
+        return 0;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        return JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, Class<T> type) {
+        return JSONUtil.toBean(new String(bytes, StandardCharsets.UTF_8), type);
+    }
+
+    @Override
+    public <T> RedisData decodeLogical(byte[] bytes, Class<T> type) {
+        // 只解析一次json，data部分从JSONObject直接转为对象
+        RedisData redisData = JSONUtil.parseObj(new String(bytes, StandardCharsets.UTF_8)).toBean(RedisData.class);
+        Object data = redisData.getData();
+        if (data instanceof JSONObject) {
+            redisData.setData(((JSONObject) data).toBean(type));
+        }
+        return redisData;
+    }
+}
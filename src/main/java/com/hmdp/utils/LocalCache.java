@@ -0,0 +1,128 @@
+package com.hmdp.utils;
+
+import cn.hutool.cache.Cache;
+import cn.hutool.cache.CacheUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+
+import static com.hmdp.utils.RedisConstants.CACHE_INVALIDATE_CHANNEL;
+
+/***
+ * 进程内的一级缓存，放在redis前面，保存反序列化之后的对象。
+ * 容量满了按LRU淘汰，写入超过ttl后过期。数据更新时通过redis的发布订阅通知所有节点删除本地的缓存。
+ * 注意：缓存的是同一个对象，调用者拿到之后不要修改它
+ */
+@Slf4j
+@Component
+public class LocalCache {
+    private final StringRedisTemplate stringRedisTemplate;
+    private final RedisMessageListenerContainer listenerContainer;
+    private final CacheStats cacheStats;
+    private final boolean enabled;
+    private final Cache<String, Object> cache;
+
+    public LocalCache(StringRedisTemplate stringRedisTemplate,
+                      RedisMessageListenerContainer listenerContainer,
+                      CacheStats cacheStats,
+                      @Value("${hmdp.cache.local.enabled:false}") boolean enabled,
+                      @Value("${hmdp.cache.local.maximum-size:10000}") int maximumSize,
+                      @Value("${hmdp.cache.local.ttl-millis:5000}") long ttlMillis) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.listenerContainer = listenerContainer;
+        this.cacheStats = cacheStats;
+        this.enabled = enabled;
+        this.cache = CacheUtil.newLRUCache(maximumSize, ttlMillis);
+    }
+
+    @PostConstruct
+    private void init() {
+        // 订阅失效通知，收到的消息体就是要删除的key
+        listenerContainer.addMessageListener(
+                (message, pattern) -> invalidateLocal(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(CACHE_INVALIDATE_CHANNEL));
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /***
+     * 查询本地缓存
+     * @param key 完整的key，即 keyPrefix + id
+     * @param type 对象类型
+     * @return 未开启、未命中或者类型不符时返回null
+     */
+    public <R> R get(String key, Class<R> type) {
+        if (!enabled) {
+            return null;
+        }
+        Object value = cache.get(key, false);
+        if (type.isInstance(value)) {
+            cacheStats.recordL1Hit();
+            return type.cast(value);
+        }
+        cacheStats.recordL1Miss();
+        return null;
+    }
+
+    public void put(String key, Object value) {
+        if (!enabled || value == null) {
+            return;
+        }
+        cache.put(key, value);
+    }
+
+    /***
+     * 只删除当前节点的本地缓存
+     * @param key
+     */
+    public void invalidateLocal(String key) {
+        if (enabled) {
+            cache.remove(key);
+        }
+    }
+
+    /***
+     * 删除当前节点的本地缓存，并通知其他节点一起删除
+     * @param key
+     */
+    public void invalidate(String key) {
+        invalidateLocal(key);
+        try {
+            stringRedisTemplate.convertAndSend(CACHE_INVALIDATE_CHANNEL, key);
+        } catch (Exception e) {
+            // 通知失败时其他节点只能等本地缓存过期，ttl很短，这里不影响主流程
+            log.error("广播缓存失效消息失败, key: {}", key, e);
+        }
+    }
+
+    /***
+     * 批量删除，用一次pipeline发送所有的失效通知
+     * @param keys
+     */
+    public void invalidateAll(Collection<String> keys) {
+        for (String key : keys) {
+            invalidateLocal(key);
+        }
+        try {
+            byte[] channel = CACHE_INVALIDATE_CHANNEL.getBytes(StandardCharsets.UTF_8);
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (String key : keys) {
+                    connection.publish(channel, key.getBytes(StandardCharsets.UTF_8));
+                }
+                return null;
+            });
+        } catch (Exception e) {
+            log.error("广播缓存失效消息失败, keys: {}", keys, e);
+        }
+    }
+}
@@ -0,0 +1,409 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.hash.MurmurHash;
+import io.lettuce.core.api.async.RedisAsyncCommands;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/***
+ * 基于redis bitmap的布隆过滤器，所有节点共享同一份位图，用来在查询缓存和数据库之前判断id是否可能存在，解决缓存穿透。
+ * 位图的参数(位数、哈希函数个数)和版本号保存在 bloom:{name}:meta 中，位图保存在 bloom:{name}:{version} 中。
+ * 重建时先写一个新版本的位图，写完之后再切换meta，不影响正在使用的旧位图。
+ * 可以在本地保留一份位图的副本，副本中存在时不访问redis，新增的id通过发布订阅同步给其他节点的副本；
+ * 副本中不存在时仍然查询redis确认，副本落后于redis不会导致误判为不存在
+ */
+@Slf4j
+public class RedisBloomFilter {
+    /**
+     * redis位图最多2^32位
+     */
+    private static final long MAX_BITS = 1L << 32;
+
+    private final String name;
+    private final StringRedisTemplate stringRedisTemplate;
+    /**
+     * 根据上一批最大的id查询下一批id，需要按id升序返回，返回空集合表示查询完毕
+     */
+    private final Function<Long, List<Long>> idPager;
+    private final boolean enabled;
+    private final boolean localCopy;
+    private final long expectedInsertions;
+    private final double fpp;
+
+    /**
+     * 当前使用的位图参数和本地副本，两者必须是同一个版本，所以放在一起替换。null表示还未初始化，此时所有id都认为可能存在
+     */
+    private volatile State state;
+
+    public RedisBloomFilter(String name, StringRedisTemplate stringRedisTemplate, Function<Long, List<Long>> idPager,
+                            boolean enabled, boolean localCopy, long expectedInsertions, double fpp) {
+        this.name = name;
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.idPager = idPager;
+        this.enabled = enabled;
+        this.localCopy = localCopy;
+        this.expectedInsertions = expectedInsertions;
+        this.fpp = fpp;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /***
+     * 判断id是否可能存在。返回false时id一定不存在；未初始化或者redis异常时返回true，不影响正常查询。
+     * 本地副本只能用来快速确认存在：副本可能漏掉刷新期间写入的位或者丢失的发布订阅消息，
+     * 本地副本认为不存在时再到redis中确认一次，确认存在时把这些位补到本地副本中
+     * @param id
+     * @return
+     */
+    public boolean mightContain(Object id) {
+        State current = state;
+        if (!enabled || current == null) {
+            return true;
+        }
+        Meta m = current.meta;
+        long[] offsets = offsets(id, m);
+        if (localContains(current, offsets)) {
+            return true;
+        }
+        boolean contains = remoteMightContain(m, offsets);
+        if (contains && current.localBits != null) {
+            setLocalBits(current, offsets);
+        }
+        return contains;
+    }
+
+    /***
+     * mightContain 的异步版本，本地副本不能确认时使用lettuce的异步命令查询位图，不阻塞调用线程。
+     * 判断规则和 mightContain 相同，redis异常时返回true
+     * @param id
+     * @param commands lettuce的异步命令，命令在同一个连接上自动流水线发送
+     * @return
+     */
+    public CompletableFuture<Boolean> mightContainAsync(Object id, RedisAsyncCommands<String, byte[]> commands) {
+        State current = state;
+        if (!enabled || current == null) {
+            return CompletableFuture.completedFuture(true);
+        }
+        Meta m = current.meta;
+        long[] offsets = offsets(id, m);
+        if (localContains(current, offsets)) {
+            return CompletableFuture.completedFuture(true);
+        }
+        String key = bitmapKey(m.version);
+        CompletableFuture<Long> exists;
+        List<CompletableFuture<Long>> bits = new ArrayList<>(offsets.length);
+        try {
+            exists = commands.exists(key).toCompletableFuture();
+            for (long offset : offsets) {
+                bits.add(commands.getbit(key, offset).toCompletableFuture());
+            }
+        } catch (Exception e) {
+            log.error("查询布隆过滤器失败, name: {}", name, e);
+            return CompletableFuture.completedFuture(true);
+        }
+        return CompletableFuture.allOf(bits.toArray(new CompletableFuture[0]))
+                .thenCombine(exists, (ignored, count) -> {
+                    // 位图不存在时认为可能存在，和 remoteMightContain 一致
+                    if (count == null || count == 0) {
+                        return true;
+                    }
+                    for (CompletableFuture<Long> bit : bits) {
+                        if (bit.join() != 1L) {
+                            return false;
+                        }
+                    }
+                    if (current.localBits != null) {
+                        setLocalBits(current, offsets);
+                    }
+                    return true;
+                })
+                .exceptionally(e -> {
+                    log.error("查询布隆过滤器失败, name: {}", name, e);
+                    return true;
+                });
+    }
+
+    /***
+     * 本地副本中所有的位都存在时返回true，没有本地副本时返回false
+     */
+    private static boolean localContains(State current, long[] offsets) {
+        byte[] bits = current.localBits;
+        if (bits == null) {
+            return false;
+        }
+        for (long offset : offsets) {
+            if (!getBit(bits, offset)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /***
+     * 查询redis中的位图。位图不存在说明还没有初始化，或者旧版本已经过期而本节点还没有刷新，都认为可能存在
+     */
+    private boolean remoteMightContain(Meta m, long[] offsets) {
+        try {
+            String key = bitmapKey(m.version);
+            List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+                connection.exists(rawKey);
+                for (long offset : offsets) {
+                    connection.getBit(rawKey, offset);
+                }
+                return null;
+            });
+            if (!Boolean.TRUE.equals(results.get(0))) {
+                return true;
+            }
+            for (int i = 1; i < results.size(); i++) {
+                if (!Boolean.TRUE.equals(results.get(i))) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (Exception e) {
+            log.error("查询布隆过滤器失败, name: {}", name, e);
+            return true;
+        }
+    }
+
+    /***
+     * 新增数据后调用，把id写入redis的位图，并通知其他节点更新本地副本
+     * @param id
+     */
+    public void put(Object id) {
+        if (!enabled) {
+            return;
+        }
+        // 每次写入都重新读取meta，保证其他节点重建切换版本之后也能写入新的位图
+        Meta m = loadMeta();
+        if (m == null) {
+            return;
+        }
+        State current = state;
+        if (current == null || current.meta.version != m.version) {
+            refresh();
+        }
+        long[] offsets = offsets(id, m);
+        String key = bitmapKey(m.version);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+            for (long offset : offsets) {
+                connection.setBit(rawKey, offset, true);
+            }
+            return null;
+        });
+        State latest = state;
+        if (latest != null && latest.meta.version == m.version) {
+            setLocalBits(latest, offsets);
+        }
+        stringRedisTemplate.convertAndSend(BLOOM_FILTER_CHANNEL, name + ":" + id);
+    }
+
+    /***
+     * 收到其他节点新增id的通知，更新本地副本
+     * @param id
+     */
+    public void onRemotePut(String id) {
+        State current = state;
+        if (enabled && current != null) {
+            setLocalBits(current, offsets(id, current.meta));
+        }
+    }
+
+    /***
+     * 从redis重新加载meta和本地位图副本
+     */
+    public void refresh() {
+        if (!enabled) {
+            return;
+        }
+        Meta m = loadMeta();
+        if (m == null) {
+            state = null;
+            return;
+        }
+        if (!localCopy) {
+            state = new State(m, null);
+            return;
+        }
+        byte[] raw = stringRedisTemplate.execute((RedisCallback<byte[]>) connection ->
+                connection.get(bitmapKey(m.version).getBytes(StandardCharsets.UTF_8)));
+        // 补齐到完整长度，redis的位图只会分配到最高的一位
+        byte[] bits = new byte[(int) ((m.bits + 7) / 8)];
+        if (raw != null) {
+            System.arraycopy(raw, 0, bits, 0, Math.min(raw.length, bits.length));
+        }
+        state = new State(m, bits);
+    }
+
+    public boolean isInitialized() {
+        return loadMeta() != null;
+    }
+
+    /***
+     * 重建位图。根据已有数据量和误判率重新计算位图大小，写入新版本的位图之后再切换meta
+     */
+    public void rebuild() {
+        if (!enabled) {
+            return;
+        }
+        Meta old = loadMeta();
+        // 1. 计算新位图的参数，预留一倍的增长空间
+        long n = Math.max(expectedInsertions, old == null ? 0 : old.count * 2);
+        long bits = Math.min(MAX_BITS, (long) Math.ceil(-n * Math.log(fpp) / (Math.log(2) * Math.log(2))));
+        int hashes = Math.max(1, (int) Math.round((double) bits / n * Math.log(2)));
+        long version = old == null ? 1 : old.version + 1;
+        Meta m = new Meta(bits, hashes, version, 0);
+        String key = bitmapKey(version);
+        stringRedisTemplate.delete(key);
+
+        // 2. 分批读取数据库中的id写入新位图
+        long count = 0;
+        long lastId = 0;
+        List<Long> ids;
+        while (!(ids = idPager.apply(lastId)).isEmpty()) {
+            setBits(key, ids, m);
+            count += ids.size();
+            lastId = ids.get(ids.size() - 1);
+        }
+
+        // 3. 切换到新的位图，旧位图保留一段时间，给还没有刷新meta的节点使用
+        m = new Meta(bits, hashes, version, count);
+        saveMeta(m);
+        if (old != null) {
+            stringRedisTemplate.expire(bitmapKey(old.version), BLOOM_FILTER_OLD_TTL, TimeUnit.MINUTES);
+        }
+
+        // 4. 重建期间其他节点新增的id可能写到了旧位图中，切换后再补一次
+        while (!(ids = idPager.apply(lastId)).isEmpty()) {
+            setBits(key, ids, m);
+            lastId = ids.get(ids.size() - 1);
+        }
+        refresh();
+        log.info("布隆过滤器重建完成, name: {}, bits: {}, hashes: {}, count: {}", name, bits, hashes, count);
+    }
+
+    private void setBits(String key, List<Long> ids, Meta m) {
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+            for (Long id : ids) {
+                for (long offset : offsets(id, m)) {
+                    connection.setBit(rawKey, offset, true);
+                }
+            }
+            return null;
+        });
+    }
+
+    /***
+     * 把位写入指定版本的本地副本。offsets是按这个版本的参数计算的，副本已经被替换时不再写入
+     */
+    private synchronized void setLocalBits(State expected, long[] offsets) {
+        State current = state;
+        byte[] bits = current == null || current != expected ? null : current.localBits;
+        if (bits == null) {
+            return;
+        }
+        for (long offset : offsets) {
+            int index = (int) (offset >>> 3);
+            if (index < bits.length) {
+                bits[index] |= (byte) (0x80 >>> (offset & 7));
+            }
+        }
+    }
+
+    private static boolean getBit(byte[] bits, long offset) {
+        int index = (int) (offset >>> 3);
+        return index < bits.length && (bits[index] & (0x80 >>> (offset & 7))) != 0;
+    }
+
+    /***
+     * 使用两个哈希值模拟k个哈希函数：h(i) = h1 + i * h2
+     */
+    private static long[] offsets(Object id, Meta m) {
+        long[] hash = MurmurHash.hash128(String.valueOf(id));
+        long[] offsets = new long[m.hashes];
+        long combined = hash[0];
+        for (int i = 0; i < m.hashes; i++) {
+            offsets[i] = (combined & Long.MAX_VALUE) % m.bits;
+            combined += hash[1];
+        }
+        return offsets;
+    }
+
+    private String bitmapKey(long version) {
+        return BLOOM_FILTER_KEY + name + ":" + version;
+    }
+
+    private String metaKey() {
+        return BLOOM_FILTER_KEY + name + ":meta";
+    }
+
+    private Meta loadMeta() {
+        Map<Object, Object> map = stringRedisTemplate.opsForHash().entries(metaKey());
+        if (map.isEmpty()) {
+            return null;
+        }
+        return new Meta(
+                Long.parseLong(map.get("bits").toString()),
+                Integer.parseInt(map.get("hashes").toString()),
+                Long.parseLong(map.get("version").toString()),
+                Long.parseLong(map.get("count").toString()));
+    }
+
+    private void saveMeta(Meta m) {
+        Map<String, String> map = new HashMap<>(4);
+        map.put("bits", String.valueOf(m.bits));
+        map.put("hashes", String.valueOf(m.hashes));
+        map.put("version", String.valueOf(m.version));
+        map.put("count", String.valueOf(m.count));
+        stringRedisTemplate.opsForHash().putAll(metaKey(), map);
+    }
+
+    private static class State {
+        private final Meta meta;
+        /**
+         * 本地位图副本，字节和位的顺序与redis的bitmap保持一致，不保留本地副本时为null
+         */
+        private final byte[] localBits;
+
+        private State(Meta meta, byte[] localBits) {
+            this.meta = meta;
+            this.localBits = localBits;
+        }
+    }
+
+    private static class Meta {
+        private final long bits;
+        private final int hashes;
+        private final long version;
+        private final long count;
+
+        private Meta(long bits, int hashes, long version, long count) {
+            this.bits = bits;
+            this.hashes = hashes;
+            this.version = version;
+            this.count = count;
+        }
+    }
+}
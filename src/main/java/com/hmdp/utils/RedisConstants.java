@@ -5,14 +5,36 @@ public class RedisConstants {
     public static final Long LOGIN_CODE_TTL = 2L;
     public static final String LOGIN_USER_KEY = "login:token:";
     public static final Long LOGIN_USER_TTL = 36000L;
+    public static final String LOGIN_TOKEN_REVOKE_CHANNEL = "login:token:revoke";
 
     public static final Long CACHE_NULL_TTL = 2L;
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
+    public static final String CACHE_SHOP_HASH_KEY = "cache:shop:hash:";
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
+    public static final String ID_WORKER_KEY = "id:worker:";
+    public static final String LOCK_RELEASE_CHANNEL = "lock:release";
+    public static final Long CACHE_USER_TTL = 30L;
+    public static final String CACHE_USER_KEY = "cache:user:";
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+    public static final String CACHE_LOCK_KEY = "lock:";
+    public static final String CACHE_WARMUP_LOCK = "cache:warmup";
+    public static final String CACHE_WARMUP_DONE_KEY = "cache:warmup:done";
+    public static final Long CACHE_WARMUP_DONE_TTL = 60L;
+
+    public static final String BLOOM_FILTER_KEY = "bloom:";
+    public static final String BLOOM_FILTER_CHANNEL = "bloom:put";
+    public static final Long BLOOM_FILTER_OLD_TTL = 10L;
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_VOUCHER_KEY = "seckill:voucher:";
+    public static final String SECKILL_SOLD_OUT_KEY = "seckill:soldout:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:soldout";
+    public static final String SECKILL_ORDER_STREAM = "stream.orders";
+    public static final String SECKILL_ORDER_GROUP = "g1";
+    public static final String SECKILL_ORDER_DEAD_STREAM = "stream.orders.dead";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FEED_KEY = "feed:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
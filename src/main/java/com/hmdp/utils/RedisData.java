@@ -12,4 +12,8 @@ import java.time.LocalDateTime;
 public class RedisData {
     private LocalDateTime expireTime;
     private Object data;
+    /**
+     * 上一次重建缓存的耗时，毫秒，提前刷新时使用
+     */
+    private Long rebuildCost;
 }
@@ -1,14 +1,33 @@
 package com.hmdp.utils;
 
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PreDestroy;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
+/***
+ * 全局唯一id：高32位是时间戳(秒)，低32位是当天的序列号，序列号保存在redis中，每天一个key。
+ * 分段模式下每个节点一次用 INCRBY 从redis中预留 step 个序列号，在本地用原子变量无锁分配，
+ * 当前号段用掉 prefetchRatio 之后在后台线程预取下一段，用完时直接切换，大部分请求不访问redis。
+ * 号段只在所属的那一天使用，跨天时丢弃旧号段，保证同一秒内不同节点的序列号不重复。
+ * 代价是节点重启时没有用完的序列号会被浪费，id在节点之间不再严格递增，每个节点内仍然递增
+ */
+@Slf4j
 @Component
-public class RedisIdWorker {
+public class RedisIdWorker implements IdGenerator {
     /***
      * 开始时间戳
      */
@@ -18,12 +37,43 @@ public class RedisIdWorker {
      */
     private static final int COUNT_BITS = 32;
 
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
+
     private final StringRedisTemplate stringRedisTemplate;
+    private final boolean segmentEnabled;
+    private final int step;
+    private final double prefetchRatio;
+
+    /**
+     * keyPrefix -> 号段
+     */
+    private final Map<String, SegmentBuffer> buffers = new ConcurrentHashMap<>();
+
+    /**
+     * 预取号段的后台线程
+     */
+    private final ExecutorService prefetchExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "id-segment-prefetch");
+        thread.setDaemon(true);
+        return thread;
+    });
 
-    public RedisIdWorker(StringRedisTemplate stringRedisTemplate) {
+    public RedisIdWorker(StringRedisTemplate stringRedisTemplate,
+                         @Value("${hmdp.id.segment.enabled:true}") boolean segmentEnabled,
+                         @Value("${hmdp.id.segment.step:1000}") int step,
+                         @Value("${hmdp.id.segment.prefetch-ratio:0.5}") double prefetchRatio) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.segmentEnabled = segmentEnabled && step > 1;
+        this.step = step;
+        this.prefetchRatio = prefetchRatio;
     }
 
+    @PreDestroy
+    private void destroy() {
+        prefetchExecutor.shutdownNow();
+    }
+
+    @Override
     public long nextId(String keyPrefix) {
         // 1. 生成时间戳
         LocalDateTime now = LocalDateTime.now();
@@ -32,11 +82,134 @@ public class RedisIdWorker {
 
         // 2. 生成序列号
         // 2.1. 获取当前日期，精确到天
-        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
-        // 2.2. 自增长
-        long count = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date);
+        LocalDate date = now.toLocalDate();
+        // 2.2. 自增长，分段模式下从本地号段中分配
+        long count = segmentEnabled
+                ? buffers.computeIfAbsent(keyPrefix, SegmentBuffer::new).next(date)
+                : stringRedisTemplate.opsForValue().increment(counterKey(keyPrefix, date));
 
         // 3. 拼接并返回
         return timestamp << COUNT_BITS | count;
     }
+
+    private static String counterKey(String keyPrefix, LocalDate date) {
+        return "icr:" + keyPrefix + ":" + date.format(DATE_FORMATTER);
+    }
+
+    /***
+     * 一个号段 [start, end)，只在 date 这一天使用
+     */
+    private static class Segment {
+        private final LocalDate date;
+        private final long start;
+        private final long end;
+        private final AtomicLong cursor;
+
+        private Segment(LocalDate date, long start, long end) {
+            this.date = date;
+            this.start = start;
+            this.end = end;
+            this.cursor = new AtomicLong(start);
+        }
+    }
+
+    /***
+     * 一个keyPrefix的当前号段和预取的下一个号段
+     */
+    private class SegmentBuffer {
+        private final String keyPrefix;
+        private volatile Segment current;
+        private volatile Segment prefetched;
+        private final AtomicBoolean prefetching = new AtomicBoolean();
+
+        private SegmentBuffer(String keyPrefix) {
+            this.keyPrefix = keyPrefix;
+        }
+
+        private long next(LocalDate date) {
+            while (true) {
+                Segment segment = current;
+                if (segment != null && segment.date.equals(date)) {
+                    // 1. 无锁分配
+                    long value = segment.cursor.getAndIncrement();
+                    if (value < segment.end) {
+                        // 2. 用掉一定比例之后预取下一段
+                        if (value - segment.start == (long) ((segment.end - segment.start) * prefetchRatio)) {
+                            prefetch(date);
+                        }
+                        return value;
+                    }
+                }
+                // 3. 号段用完或者跨天了，切换号段
+                switchSegment(segment, date);
+            }
+        }
+
+        /***
+         * 只有一个线程切换，其他线程等待之后用新号段重试
+         */
+        private synchronized void switchSegment(Segment expired, LocalDate date) {
+            if (current != expired) {
+                // 其他线程已经切换过了
+                return;
+            }
+            Segment next = prefetched;
+            prefetched = null;
+            if (next == null || !next.date.equals(date) || !isAfterCurrent(next)) {
+                // 没有预取、预取的号段已经跨天，或者预取的号段比当前号段小，同步申请
+                next = allocate(date);
+            }
+            current = next;
+        }
+
+        /***
+         * 号段是否在当前号段之后。预取的INCRBY还没有返回时，切换号段的线程可能已经同步申请了一段，
+         * redis先执行预取的那一次时，预取到的号段反而更小，使用它会让id变小
+         */
+        private boolean isAfterCurrent(Segment segment) {
+            Segment c = current;
+            if (c == null) {
+                return true;
+            }
+            // 跨天之后序列号重新开始，但时间戳更大，id仍然递增
+            return segment.date.equals(c.date) ? segment.start >= c.end : segment.date.isAfter(c.date);
+        }
+
+        private void prefetch(LocalDate date) {
+            if (prefetched != null || !prefetching.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                prefetchExecutor.execute(() -> {
+                    try {
+                        Segment segment = allocate(date);
+                        synchronized (this) {
+                            // 切换号段时可能已经同步申请了更大的号段，比当前号段小的直接丢弃
+                            if (prefetched == null && isAfterCurrent(segment)) {
+                                prefetched = segment;
+                            }
+                        }
+                    } catch (Exception e) {
+                        // 预取失败时，号段用完后同步申请
+                        log.warn("预取id号段失败, keyPrefix: {}", keyPrefix, e);
+                    } finally {
+                        prefetching.set(false);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                prefetching.set(false);
+            }
+        }
+
+        /***
+         * INCRBY icr:prefix:date step，返回值是号段的最后一个序列号
+         */
+        private Segment allocate(LocalDate date) {
+            Long end = stringRedisTemplate.opsForValue().increment(counterKey(keyPrefix, date), step);
+            if (end == null) {
+                throw new IllegalStateException("申请id号段失败, keyPrefix: " + keyPrefix);
+            }
+            return new Segment(date, end - step + 1, end + 1);
+        }
+    }
 }
@@ -0,0 +1,158 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.*;
+
+import static com.hmdp.utils.RedisConstants.LOCK_RELEASE_CHANNEL;
+
+/***
+ * SimpleRedisLock 共用的基础设施：
+ * 1. 看门狗：没有指定有效期的锁每 watchdogTimeoutMillis/3 续期一次，持有锁的节点宕机后锁在 watchdogTimeoutMillis 内自动释放；
+ * 2. 释放通知：锁完全释放时lua脚本向 lock:release 频道发布锁的key，在本节点等待这个锁的线程被唤醒后立即重试，不用轮询
+ */
+@Slf4j
+@Component
+public class RedisLockSupport {
+    private static final DefaultRedisScript<Long> RENEW_SCRIPT;
+    static {
+        RENEW_SCRIPT = new DefaultRedisScript<>();
+        RENEW_SCRIPT.setLocation(new ClassPathResource("reentrant_renew.lua"));
+        RENEW_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final RedisMessageListenerContainer listenerContainer;
+    private final long watchdogTimeoutMillis;
+
+    /**
+     * 锁的key -> 在本节点等待这个锁的线程
+     */
+    private final Map<String, Waiters> waiters = new ConcurrentHashMap<>();
+    /**
+     * 锁的key和线程标示 -> 续期任务
+     */
+    private final Map<String, Renewal> renewals = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "lock-watchdog");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public RedisLockSupport(StringRedisTemplate stringRedisTemplate,
+                            RedisMessageListenerContainer listenerContainer,
+                            @Value("${hmdp.lock.watchdog-timeout-millis:30000}") long watchdogTimeoutMillis) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.listenerContainer = listenerContainer;
+        this.watchdogTimeoutMillis = watchdogTimeoutMillis;
+    }
+
+    @PostConstruct
+    private void init() {
+        // 消息内容是释放的锁的key，唤醒一个等待的线程
+        listenerContainer.addMessageListener((message, pattern) -> {
+            Waiters w = waiters.get(new String(message.getBody(), StandardCharsets.UTF_8));
+            if (w != null) {
+                w.semaphore.release();
+            }
+        }, new ChannelTopic(LOCK_RELEASE_CHANNEL));
+    }
+
+    @PreDestroy
+    private void destroy() {
+        watchdog.shutdownNow();
+    }
+
+    public long getWatchdogTimeoutMillis() {
+        return watchdogTimeoutMillis;
+    }
+
+    /***
+     * 开始等待一个锁，必须在尝试获取锁之前调用，否则可能错过释放通知。等待结束后调用 unsubscribe
+     * @param key 锁的key
+     * @return 锁释放时会被release的信号量
+     */
+    Semaphore subscribe(String key) {
+        return waiters.compute(key, (k, w) -> {
+            if (w == null) {
+                w = new Waiters();
+            }
+            w.count++;
+            return w;
+        }).semaphore;
+    }
+
+    void unsubscribe(String key) {
+        waiters.computeIfPresent(key, (k, w) -> --w.count == 0 ? null : w);
+    }
+
+    /***
+     * 开始续期，同一个线程重入时不会重复续期
+     */
+    void scheduleRenewal(String key, String field) {
+        renewals.computeIfAbsent(key + "|" + field, id -> {
+            Renewal renewal = new Renewal(id, key, field);
+            long interval = Math.max(1, watchdogTimeoutMillis / 3);
+            renewal.future = watchdog.scheduleWithFixedDelay(renewal, interval, interval, TimeUnit.MILLISECONDS);
+            return renewal;
+        });
+    }
+
+    /***
+     * 锁完全释放之后停止续期
+     */
+    void cancelRenewal(String key, String field) {
+        Renewal renewal = renewals.remove(key + "|" + field);
+        if (renewal != null) {
+            renewal.future.cancel(false);
+        }
+    }
+
+    private static class Waiters {
+        private final Semaphore semaphore = new Semaphore(0);
+        private int count;
+    }
+
+    private class Renewal implements Runnable {
+        private final String id;
+        private final String key;
+        private final String field;
+        private volatile ScheduledFuture<?> future;
+
+        private Renewal(String id, String key, String field) {
+            this.id = id;
+            this.key = key;
+            this.field = field;
+        }
+
+        @Override
+        public void run() {
+            try {
+                Long result = stringRedisTemplate.execute(RENEW_SCRIPT, Collections.singletonList(key),
+                        field, String.valueOf(watchdogTimeoutMillis));
+                if (result == null || result == 0L) {
+                    // 锁已经不是自己的了(已经释放或者过期)，停止续期
+                    if (renewals.remove(id, this)) {
+                        future.cancel(false);
+                    }
+                }
+            } catch (Exception e) {
+                // 下次继续续期
+                log.warn("锁续期失败, key: {}", key, e);
+            }
+        }
+    }
+}
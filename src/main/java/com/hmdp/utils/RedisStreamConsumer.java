@@ -0,0 +1,338 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisStreamCommands;
+import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/***
+ * 基于消费者组的redis stream消费者，一个节点上启动多个消费者线程并行消费：
+ * 1. XREADGROUP 批量读取新消息，最多攒够 batchSize 条或者等待 lingerMillis，一起交给处理逻辑，
+ *    只确认处理成功的消息，失败的消息留在pending list中；
+ * 2. 启动时以及处理失败之后重新处理自己的pending list；
+ * 3. 定期用 XCLAIM 接管其他消费者空闲太久的消息(消费者所在的节点可能已经宕机)；
+ * 4. 投递次数过多的消息转移到死信stream并确认，不会一直重试。
+ * 消费者名称由 节点名-序号 组成，节点重启后使用同样的名称，可以继续处理重启前没有确认的消息
+ */
+@Slf4j
+public class RedisStreamConsumer {
+    private final StringRedisTemplate stringRedisTemplate;
+    private final String stream;
+    private final String group;
+    private final String deadLetterStream;
+    private final String consumerPrefix;
+    private final int consumers;
+    private final int batchSize;
+    private final long blockMillis;
+    /**
+     * 读到第一条消息之后最多再等待多久来凑够一批，0表示不等待
+     */
+    private final long lingerMillis;
+    private final long claimIdleMillis;
+    private final long recoverIntervalMillis;
+    private final int maxDeliveries;
+    /**
+     * 处理一批消息，返回处理成功、可以确认的消息id。处理逻辑需要保证在数据提交之后才返回
+     */
+    private final Function<List<MapRecord<String, Object, Object>>, Collection<RecordId>> handler;
+
+    private volatile boolean running;
+    private ExecutorService executor;
+
+    public RedisStreamConsumer(StringRedisTemplate stringRedisTemplate, String stream, String group,
+                               String deadLetterStream, String consumerPrefix, int consumers, int batchSize,
+                               long blockMillis, long lingerMillis, long claimIdleMillis,
+                               long recoverIntervalMillis, int maxDeliveries,
+                               Function<List<MapRecord<String, Object, Object>>, Collection<RecordId>> handler) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.stream = stream;
+        this.group = group;
+        this.deadLetterStream = deadLetterStream;
+        this.consumerPrefix = consumerPrefix;
+        this.consumers = consumers;
+        this.batchSize = batchSize;
+        this.blockMillis = blockMillis;
+        this.lingerMillis = lingerMillis;
+        this.claimIdleMillis = claimIdleMillis;
+        this.recoverIntervalMillis = recoverIntervalMillis;
+        this.maxDeliveries = maxDeliveries;
+        this.handler = handler;
+    }
+
+    /***
+     * 创建消费者组(不存在时)并启动所有消费者线程
+     */
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        createGroup();
+        running = true;
+        AtomicInteger index = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(consumers,
+                r -> new Thread(r, "stream-consumer-" + stream + "-" + index.incrementAndGet()));
+        for (int i = 0; i < consumers; i++) {
+            executor.submit(new Worker(consumerPrefix + "-" + i));
+        }
+        log.info("stream消费者启动, stream: {}, group: {}, consumers: {}", stream, group, consumers);
+    }
+
+    /***
+     * 停止读取新消息，等待正在处理的批次结束。没有确认的消息留在pending list中，下次启动时继续处理
+     */
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        executor.shutdown();
+        try {
+            // 阻塞读取最多等待 blockMillis
+            if (!executor.awaitTermination(blockMillis + 5000, TimeUnit.MILLISECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /***
+     * XGROUP CREATE stream group $ MKSTREAM，已经存在时忽略。
+     * 从最新的位置开始消费：stream中已有的消息是以前的消费者组处理过的，从0开始会重新处理全部历史订单
+     */
+    private void createGroup() {
+        try {
+            stringRedisTemplate.execute((RedisCallback<String>) connection -> connection.streamCommands()
+                    .xGroupCreate(bytes(stream), group, ReadOffset.latest(), true));
+        } catch (Exception e) {
+            // BUSYGROUP Consumer Group name already exists
+            log.debug("消费者组已经存在, stream: {}, group: {}", stream, group);
+        }
+    }
+
+    private class Worker implements Runnable {
+        private final String name;
+        private final Consumer consumer;
+        /**
+         * 下一次处理pending list的时间，0表示立即处理
+         */
+        private long nextRecoverAt = 0;
+
+        private Worker(String name) {
+            this.name = name;
+            this.consumer = Consumer.from(group, name);
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    // 1. 启动时、处理失败之后以及定期处理pending list
+                    if (System.currentTimeMillis() >= nextRecoverAt) {
+                        nextRecoverAt = System.currentTimeMillis() + recoverIntervalMillis;
+                        recover();
+                    }
+                    // 2. 批量读取新消息 XREADGROUP GROUP g1 c1 COUNT n BLOCK 2000 STREAMS stream.orders >
+                    List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().read(
+                            consumer,
+                            StreamReadOptions.empty().count(batchSize).block(Duration.ofMillis(blockMillis)),
+                            StreamOffset.create(stream, ReadOffset.lastConsumed()));
+                    if (records == null || records.isEmpty()) {
+                        continue;
+                    }
+                    // 3. 不够一批时再等待一小段时间
+                    records = linger(records);
+                    // 4. 处理并确认
+                    if (!handle(records)) {
+                        retrySoon();
+                    }
+                } catch (Exception e) {
+                    log.error("读取stream消息异常, stream: {}, consumer: {}", stream, name, e);
+                    retrySoon();
+                    sleep(100);
+                }
+            }
+        }
+
+        /***
+         * 在 lingerMillis 内继续读取，直到凑够 batchSize 条或者超时
+         */
+        private List<MapRecord<String, Object, Object>> linger(List<MapRecord<String, Object, Object>> first) {
+            if (lingerMillis <= 0 || first.size() >= batchSize) {
+                return first;
+            }
+            List<MapRecord<String, Object, Object>> records = new ArrayList<>(first);
+            long deadline = System.currentTimeMillis() + lingerMillis;
+            while (running && records.size() < batchSize) {
+                long remain = deadline - System.currentTimeMillis();
+                if (remain <= 0) {
+                    break;
+                }
+                List<MapRecord<String, Object, Object>> more = stringRedisTemplate.opsForStream().read(
+                        consumer,
+                        StreamReadOptions.empty().count(batchSize - records.size()).block(Duration.ofMillis(remain)),
+                        StreamOffset.create(stream, ReadOffset.lastConsumed()));
+                if (more == null || more.isEmpty()) {
+                    break;
+                }
+                records.addAll(more);
+            }
+            return records;
+        }
+
+        /***
+         * 1秒后再处理pending list，避免失败的消息被立即反复重试
+         */
+        private void retrySoon() {
+            nextRecoverAt = Math.min(nextRecoverAt, System.currentTimeMillis() + 1000);
+        }
+
+        /***
+         * 处理一批消息，确认处理成功的部分
+         * @return 是否全部处理成功
+         */
+        private boolean handle(List<MapRecord<String, Object, Object>> records) {
+            Collection<RecordId> done;
+            try {
+                done = handler.apply(records);
+            } catch (Exception e) {
+                log.error("处理stream消息异常, stream: {}, consumer: {}", stream, name, e);
+                return false;
+            }
+            if (done != null && !done.isEmpty()) {
+                // XACK stream.orders g1 id...
+                stringRedisTemplate.opsForStream().acknowledge(stream, group, done.toArray(new RecordId[0]));
+            }
+            return done != null && done.size() == records.size();
+        }
+
+        /***
+         * 接管其他消费者空闲太久的消息，再处理自己的pending list
+         */
+        private void recover() {
+            claimIdle();
+            handlePendingList();
+        }
+
+        /***
+         * 分页遍历 XPENDING 找出空闲超过 claimIdleMillis 的消息，每一页 XCLAIM 到当前消费者名下。
+         * 使用JUSTID，接管本身不增加投递次数，之后读取pending list时才增加
+         */
+        private void claimIdle() {
+            Range<String> range = Range.unbounded();
+            int claimedCount = 0;
+            while (running) {
+                // 1. XPENDING stream.orders g1 start + batchSize
+                PendingMessages pending = stringRedisTemplate.opsForStream().pending(stream, group, range, batchSize);
+                if (pending.isEmpty()) {
+                    break;
+                }
+                List<RecordId> ids = new ArrayList<>();
+                RecordId lastId = null;
+                for (PendingMessage message : pending) {
+                    lastId = message.getId();
+                    if (!name.equals(message.getConsumerName())
+                            && message.getElapsedTimeSinceLastDelivery().toMillis() >= claimIdleMillis) {
+                        ids.add(message.getId());
+                    }
+                }
+                // 2. 多个节点同时接管时，min-idle-time 保证同一条消息只会被一个消费者接管
+                if (!ids.isEmpty()) {
+                    RedisStreamCommands.XClaimOptions options = RedisStreamCommands.XClaimOptions
+                            .minIdle(Duration.ofMillis(claimIdleMillis)).ids(ids.toArray(new RecordId[0]));
+                    List<RecordId> claimed = stringRedisTemplate.execute((RedisCallback<List<RecordId>>) connection ->
+                            connection.streamCommands().xClaimJustId(bytes(stream), group, name, options));
+                    claimedCount += claimed == null ? 0 : claimed.size();
+                }
+                // 3. 不满一页说明已经遍历完，否则从最后一条的下一个id继续
+                if (pending.size() < batchSize) {
+                    break;
+                }
+                range = Range.rightUnbounded(Range.Bound.inclusive(nextId(lastId)));
+            }
+            if (claimedCount > 0) {
+                log.warn("接管其他消费者空闲的消息, stream: {}, consumer: {}, count: {}", stream, name, claimedCount);
+            }
+        }
+
+        /***
+         * 从头遍历一遍自己的pending list：投递次数过多的转为死信，其余的重新处理。
+         * 只遍历一遍，仍然失败的消息留到下一次
+         */
+        private void handlePendingList() {
+            String lastId = "0";
+            while (running) {
+                // 1. 读取pending list XREADGROUP GROUP g1 c1 COUNT n STREAMS stream.orders lastId
+                List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().read(
+                        consumer,
+                        StreamReadOptions.empty().count(batchSize),
+                        StreamOffset.create(stream, ReadOffset.from(lastId)));
+                // 2. 没有消息，说明pending list已经处理完了
+                if (records == null || records.isEmpty()) {
+                    return;
+                }
+                lastId = records.get(records.size() - 1).getId().getValue();
+                // 3. 投递次数过多的消息转为死信
+                Map<String, Long> deliveries = new HashMap<>();
+                for (PendingMessage message : stringRedisTemplate.opsForStream().pending(stream, consumer,
+                        Range.closed(records.get(0).getId().getValue(), lastId), records.size())) {
+                    deliveries.put(message.getIdAsString(), message.getTotalDeliveryCount());
+                }
+                List<MapRecord<String, Object, Object>> retry = new ArrayList<>(records.size());
+                for (MapRecord<String, Object, Object> record : records) {
+                    // 消息已经被删除时值为空，直接确认
+                    if (record.getValue() == null || record.getValue().isEmpty()) {
+                        stringRedisTemplate.opsForStream().acknowledge(stream, group, record.getId());
+                    } else if (deliveries.getOrDefault(record.getId().getValue(), 0L) > maxDeliveries) {
+                        deadLetter(record);
+                    } else {
+                        retry.add(record);
+                    }
+                }
+                // 4. 重新处理
+                if (!retry.isEmpty()) {
+                    handle(retry);
+                }
+            }
+        }
+
+        private void deadLetter(MapRecord<String, Object, Object> record) {
+            log.error("消息投递次数过多，转为死信, stream: {}, id: {}, value: {}", stream, record.getId(), record.getValue());
+            Map<Object, Object> value = new HashMap<>(record.getValue());
+            value.put("sourceId", record.getId().getValue());
+            stringRedisTemplate.opsForStream().add(deadLetterStream, value);
+            stringRedisTemplate.opsForStream().acknowledge(stream, group, record.getId());
+        }
+    }
+
+    /***
+     * 紧跟在id后面的一个id，XPENDING的开区间需要redis 6.2，这里用闭区间的下一个id代替
+     */
+    private static String nextId(RecordId id) {
+        return id.getTimestamp() + "-" + (id.getSequence() + 1);
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
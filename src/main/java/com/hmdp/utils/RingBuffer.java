@@ -0,0 +1,200 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/***
+ * 预先分配好槽位的环形队列，多个生产者、一个消费者，不使用锁：
+ * 1. 生产者先用 tryNext() CAS 申请一个序号，队列已满时立即返回 -1，调用者可以在做任何有副作用的操作之前拒绝请求；
+ * 2. 申请到序号之后必须调用 publish 发布，业务上放弃时发布 null，消费者会跳过；
+ * 3. 消费者按序号顺序批量取出已经发布的元素，取出之后槽位就可以被生产者重新使用；
+ *    没有元素时消费者短暂自旋之后挂起，由 publish 唤醒，空闲时不会频繁醒来。
+ * 可以导出队列深度、元素在队列中的等待时间以及因为队列已满被拒绝的次数
+ * @param <T>
+ */
+public class RingBuffer<T> {
+    private final int capacity;
+    private final int mask;
+    private final Object[] entries;
+    /**
+     * 每个槽位最近一次发布的序号，等于要读取的序号时说明已经发布
+     */
+    private final AtomicLongArray published;
+    private final long[] publishNanos;
+    /**
+     * 最近一次申请的序号
+     */
+    private final AtomicLong cursor = new AtomicLong(-1);
+    /**
+     * 最近一次消费完成的序号，只有消费者线程修改
+     */
+    private volatile long consumed = -1;
+    /**
+     * 挂起等待新元素的消费者线程，没有挂起时为null
+     */
+    private volatile Thread waiter;
+
+    private final Counter rejected;
+    private final Timer latency;
+
+    /***
+     * @param capacity 容量，必须是2的幂
+     * @param registry 为null时不导出指标
+     * @param name 指标名称前缀
+     */
+    public RingBuffer(int capacity, MeterRegistry registry, String name) {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("capacity must be a power of 2: " + capacity);
+        }
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.entries = new Object[capacity];
+        this.published = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            published.set(i, -1);
+        }
+        this.publishNanos = new long[capacity];
+        if (registry != null) {
+            Gauge.builder(name + ".depth", this, RingBuffer::size).register(registry);
+            Gauge.builder(name + ".capacity", this, RingBuffer::capacity).register(registry);
+            this.rejected = Counter.builder(name + ".rejected").register(registry);
+            this.latency = Timer.builder(name + ".latency").register(registry);
+        } else {
+            this.rejected = null;
+            this.latency = null;
+        }
+    }
+
+    /***
+     * 申请一个槽位
+     * @return 序号，队列已满时返回-1
+     */
+    public long tryNext() {
+        while (true) {
+            long current = cursor.get();
+            long next = current + 1;
+            if (next - capacity > consumed) {
+                if (rejected != null) {
+                    rejected.increment();
+                }
+                return -1;
+            }
+            if (cursor.compareAndSet(current, next)) {
+                return next;
+            }
+        }
+    }
+
+    /***
+     * 发布申请到的槽位，每个序号必须发布且只能发布一次，否则消费者会一直等待这个序号
+     * @param sequence tryNext() 返回的序号
+     * @param value 为null表示放弃这个槽位
+     */
+    public void publish(long sequence, T value) {
+        int index = (int) (sequence & mask);
+        entries[index] = value;
+        publishNanos[index] = System.nanoTime();
+        // volatile写，保证消费者看到序号时一定能看到上面写入的值
+        published.set(index, sequence);
+        // 消费者挂起时唤醒，没有挂起时只是一次volatile读
+        Thread w = waiter;
+        if (w != null) {
+            LockSupport.unpark(w);
+        }
+    }
+
+    /***
+     * 批量取出已经发布的元素，只能在一个线程中调用。没有元素时最多等待 timeout，先自旋，再挂起直到 publish 唤醒或者超时
+     * @param out 取出的元素，跳过为null的元素
+     * @param max 最多取出的数量(包括跳过的)
+     * @return 取出的数量(包括跳过的)，超时返回0
+     */
+    public int drainTo(List<? super T> out, int max, long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        int idle = 0;
+        while (true) {
+            int n = drainAvailable(out, max);
+            if (n > 0) {
+                return n;
+            }
+            long remain = deadline - System.nanoTime();
+            if (remain <= 0) {
+                return 0;
+            }
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            // 先自旋，再让出CPU，最后挂起等待 publish 唤醒
+            if (idle < 100) {
+                idle++;
+            } else if (idle < 200) {
+                idle++;
+                Thread.yield();
+            } else {
+                await(remain);
+            }
+        }
+    }
+
+    /***
+     * 挂起等待 publish 唤醒。先登记再检查一次，和 publish 先发布再读取 waiter 的顺序相反，不会丢失唤醒
+     */
+    private void await(long nanos) {
+        waiter = Thread.currentThread();
+        try {
+            long next = consumed + 1;
+            if (published.get((int) (next & mask)) != next) {
+                LockSupport.parkNanos(this, nanos);
+            }
+        } finally {
+            waiter = null;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private int drainAvailable(List<? super T> out, int max) {
+        long next = consumed + 1;
+        int n = 0;
+        long now = System.nanoTime();
+        while (n < max) {
+            long sequence = next + n;
+            int index = (int) (sequence & mask);
+            if (published.get(index) != sequence) {
+                break;
+            }
+            T value = (T) entries[index];
+            entries[index] = null;
+            if (latency != null) {
+                latency.record(now - publishNanos[index], TimeUnit.NANOSECONDS);
+            }
+            if (value != null) {
+                out.add(value);
+            }
+            n++;
+        }
+        if (n > 0) {
+            // 释放槽位，生产者可以继续申请
+            consumed = next + n - 1;
+        }
+        return n;
+    }
+
+    /***
+     * 已经申请还没有消费的数量
+     */
+    public int size() {
+        return (int) (cursor.get() - consumed);
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+}
@@ -0,0 +1,241 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.mapper.SeckillVoucherMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/***
+ * 秒杀券预热：定时把即将开始(以及正在进行中但redis中没有)的秒杀券加载到redis，
+ * 开始时间、结束时间和分段数保存在同一个hash中，库存按 hmdp.seckill.stock-segments 分成多段，
+ * 由秒杀脚本原子地判断时间和扣减库存；秒杀结束之后再从redis中卸载。
+ * 一张券的所有key都带 {优惠券id} 的hash tag，集群中落在同一个slot，脚本需要的key全部通过KEYS传入。
+ * 加载是幂等的，已经加载过的券不会被覆盖，所以每个节点都可以执行，不需要分布式锁
+ */
+@Slf4j
+@Component
+public class SeckillPreheater {
+    private static final DefaultRedisScript<Long> LOAD_SCRIPT;
+    static {
+        LOAD_SCRIPT = new DefaultRedisScript<>();
+        LOAD_SCRIPT.setLocation(new ClassPathResource("seckill_load.lua"));
+        LOAD_SCRIPT.setResultType(Long.class);
+    }
+
+    private final SeckillVoucherMapper seckillVoucherMapper;
+    private final StringRedisTemplate stringRedisTemplate;
+    private final SoldOutRegistry soldOutRegistry;
+    private final boolean enabled;
+    private final int stockSegments;
+    private final long aheadSeconds;
+    private final long unloadGraceSeconds;
+    /**
+     * 优惠券id -> redis中的分段数，执行秒杀脚本时按这个数量传入分段库存key。
+     * 其他节点加载时可能使用了不同的分段数，脚本发现传入的key不够时返回实际的分段数，再更新这里
+     */
+    private final Map<Long, Integer> segmentCounts = new ConcurrentHashMap<>();
+
+    public SeckillPreheater(SeckillVoucherMapper seckillVoucherMapper, StringRedisTemplate stringRedisTemplate,
+                            SoldOutRegistry soldOutRegistry,
+                            @Value("${hmdp.seckill.preheat.enabled:true}") boolean enabled,
+                            @Value("${hmdp.seckill.stock-segments:1}") int stockSegments,
+                            @Value("${hmdp.seckill.preheat.ahead-seconds:600}") long aheadSeconds,
+                            @Value("${hmdp.seckill.preheat.unload-grace-seconds:60}") long unloadGraceSeconds) {
+        this.seckillVoucherMapper = seckillVoucherMapper;
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.soldOutRegistry = soldOutRegistry;
+        this.enabled = enabled;
+        if (stockSegments <= 0) {
+            throw new IllegalArgumentException("hmdp.seckill.stock-segments 必须大于0: " + stockSegments);
+        }
+        this.stockSegments = stockSegments;
+        this.aheadSeconds = aheadSeconds;
+        this.unloadGraceSeconds = unloadGraceSeconds;
+    }
+
+    /***
+     * 定时预热和卸载
+     */
+    @Scheduled(fixedDelayString = "${hmdp.seckill.preheat.interval-millis:60000}")
+    public void refresh() {
+        if (!enabled) {
+            return;
+        }
+        try {
+            preheat();
+            unloadEnded();
+        } catch (Exception e) {
+            log.error("秒杀券预热失败", e);
+        }
+    }
+
+    /***
+     * 加载 aheadSeconds 之内开始、还没有结束的秒杀券，已经加载过的跳过
+     */
+    private void preheat() {
+        LocalDateTime now = LocalDateTime.now();
+        List<SeckillVoucher> vouchers = seckillVoucherMapper.selectList(new QueryWrapper<SeckillVoucher>()
+                .le("begin_time", now.plusSeconds(aheadSeconds))
+                .gt("end_time", now));
+        int loaded = 0;
+        for (SeckillVoucher voucher : vouchers) {
+            if (load(voucher, stockSegments, false)) {
+                loaded++;
+            }
+        }
+        if (loaded > 0) {
+            log.info("预热秒杀券 {} 张", loaded);
+        }
+    }
+
+    /***
+     * 卸载结束超过 unloadGraceSeconds 的秒杀券，只检查最近一天内结束的
+     */
+    private void unloadEnded() {
+        LocalDateTime deadline = LocalDateTime.now().minusSeconds(unloadGraceSeconds);
+        List<SeckillVoucher> vouchers = seckillVoucherMapper.selectList(new QueryWrapper<SeckillVoucher>()
+                .select("voucher_id")
+                .le("end_time", deadline)
+                .gt("end_time", deadline.minusDays(1)));
+        for (SeckillVoucher voucher : vouchers) {
+            unload(voucher.getVoucherId());
+        }
+    }
+
+    /***
+     * 使用配置的分段数加载秒杀券，并覆盖已经加载的数据。新增秒杀券或者补充库存时调用
+     * @param voucher
+     */
+    public void load(SeckillVoucher voucher) {
+        load(voucher, stockSegments, true);
+    }
+
+    /***
+     * 把秒杀券的时间和库存加载到redis中
+     * @param voucher
+     * @param segments 库存分段数，库存比分段数少时减少分段数
+     * @param force 是否覆盖已经加载的数据，false时已经加载过的券不做任何操作
+     * @return 是否加载了
+     */
+    public boolean load(SeckillVoucher voucher, int segments, boolean force) {
+        Long voucherId = voucher.getVoucherId();
+        int stock = voucher.getStock() == null ? 0 : voucher.getStock();
+        int n = Math.max(1, Math.min(segments, stock));
+        // 1. 旧的分段比新的多时，多出来的分段也要传给脚本删除
+        int old = loadedSegments(voucherId);
+        List<String> keys = new ArrayList<>();
+        keys.add(voucherKey(voucherId));
+        keys.add(soldOutKey(voucherId));
+        for (int i = 0; i < Math.max(n, old); i++) {
+            keys.add(stockKey(voucherId, i));
+        }
+        Long result = stringRedisTemplate.execute(LOAD_SCRIPT, keys,
+                String.valueOf(stock),
+                String.valueOf(toEpochMilli(voucher.getBeginTime())), String.valueOf(toEpochMilli(voucher.getEndTime())),
+                String.valueOf(n), force ? "1" : "0");
+        boolean loaded = result != null && result == 1L;
+        if (loaded) {
+            segmentCounts.put(voucherId, n);
+            // 清除所有节点本地的售罄标识
+            soldOutRegistry.clear(voucherId);
+        }
+        return loaded;
+    }
+
+    /***
+     * 删除秒杀券在redis中的所有数据
+     * @param voucherId
+     */
+    public void unload(Long voucherId) {
+        List<String> keys = new ArrayList<>();
+        keys.add(voucherKey(voucherId));
+        keys.add(soldOutKey(voucherId));
+        keys.add(orderKey(voucherId));
+        int n = loadedSegments(voucherId);
+        for (int i = 0; i < n; i++) {
+            keys.add(stockKey(voucherId, i));
+        }
+        segmentCounts.remove(voucherId);
+        Long deleted = stringRedisTemplate.delete(keys);
+        if (deleted != null && deleted > 0) {
+            log.info("卸载已经结束的秒杀券, voucherId: {}", voucherId);
+        }
+    }
+
+    /***
+     * 执行秒杀脚本时传入的key：秒杀券、订单、售罄标识和各个分段库存
+     * @param voucherId
+     * @return
+     */
+    public List<String> scriptKeys(Long voucherId) {
+        int n = segmentCounts.getOrDefault(voucherId, stockSegments);
+        List<String> keys = new ArrayList<>(3 + n);
+        keys.add(voucherKey(voucherId));
+        keys.add(orderKey(voucherId));
+        keys.add(soldOutKey(voucherId));
+        for (int i = 0; i < n; i++) {
+            keys.add(stockKey(voucherId, i));
+        }
+        return keys;
+    }
+
+    /***
+     * 秒杀脚本发现传入的分段key不够(其他节点用不同的分段数加载了这张券)时调用，之后按实际的分段数传入
+     */
+    public void updateSegments(Long voucherId, int segments) {
+        segmentCounts.put(voucherId, segments);
+    }
+
+    /***
+     * redis中已经加载的分段数，没有加载时返回0
+     */
+    private int loadedSegments(Long voucherId) {
+        Object segments = stringRedisTemplate.opsForHash().get(voucherKey(voucherId), "segments");
+        return segments == null ? 0 : Integer.parseInt(segments.toString());
+    }
+
+    /***
+     * 秒杀券的hash，保存开始时间、结束时间和分段数，每次秒杀都会读取
+     */
+    public static String voucherKey(Long voucherId) {
+        return SECKILL_VOUCHER_KEY + tag(voucherId);
+    }
+
+    public static String orderKey(Long voucherId) {
+        return SECKILL_ORDER_KEY + tag(voucherId);
+    }
+
+    public static String soldOutKey(Long voucherId) {
+        return SECKILL_SOLD_OUT_KEY + tag(voucherId);
+    }
+
+    public static String stockKey(Long voucherId, int segment) {
+        return SECKILL_STOCK_KEY + tag(voucherId) + ":" + segment;
+    }
+
+    /***
+     * hash tag，同一张券的key在集群中落在同一个slot
+     */
+    private static String tag(Long voucherId) {
+        return "{" + voucherId + "}";
+    }
+
+    private static long toEpochMilli(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+}
@@ -4,66 +4,137 @@ import cn.hutool.core.lang.UUID;
 import org.springframework.core.io.ClassPathResource;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
-import org.springframework.stereotype.Component;
 
 import java.util.Collections;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
+import static com.hmdp.utils.RedisConstants.LOCK_RELEASE_CHANNEL;
+
 /***
- * 简单的基于Redisd的setnx的分布式互斥锁，但是存在一些问题。比如重入问题、不可重试、
- * 超时释放(代码逻辑还没有执行完，锁就被释放了)、主从集群一致问题。
+ * 基于Redis的可重入分布式锁。锁是一个hash，field是线程标示，value是重入次数，获取、释放、续期都用lua脚本保证原子性：
+ * 1. 可重入：同一个线程再次获取时重入次数+1，释放到0时才删除锁；
+ * 2. 可重试：tryLock(waitTime, ...) 获取失败时订阅锁的释放通知，被唤醒后重试，最多等待到锁的剩余有效期，不用忙等；
+ * 3. 超时续约：不指定有效期时由看门狗定期续期，代码逻辑没有执行完锁不会被提前释放。
+ * 等待和看门狗需要 RedisLockSupport，只传 StringRedisTemplate 创建的锁等待时轮询，不能使用看门狗。
+ * 主从集群一致问题仍然存在
  */
 public class SimpleRedisLock implements ILock{
     private final String name;
     private final StringRedisTemplate stringRedisTemplate;
+    private final RedisLockSupport lockSupport;
 
     public SimpleRedisLock(String name, StringRedisTemplate stringRedisTemplate) {
+        this(name, stringRedisTemplate, null);
+    }
+
+    public SimpleRedisLock(String name, StringRedisTemplate stringRedisTemplate, RedisLockSupport lockSupport) {
         this.name = name;
         this.stringRedisTemplate = stringRedisTemplate;
+        this.lockSupport = lockSupport;
     }
 
     private static final String KEY_PREFIX = "lock:";
     // static使得同一个JVM中的UUID是同一个，但是不同的JVM不能保证是同一个，大概率是不同的
     private static final String ID_PREFIX = UUID.randomUUID().toString(true) + "-";
+    /**
+     * 没有 RedisLockSupport 时等待锁的轮询间隔
+     */
+    private static final long POLL_INTERVAL_MILLIS = 50;
+    private static final DefaultRedisScript<Long> LOCK_SCRIPT;
     private static final DefaultRedisScript<Long> UNLOCK_SCRIPT;
     static {
+        LOCK_SCRIPT = new DefaultRedisScript<>();
+        LOCK_SCRIPT.setLocation(new ClassPathResource("reentrant_lock.lua"));
+        LOCK_SCRIPT.setResultType(Long.class);
         UNLOCK_SCRIPT = new DefaultRedisScript<>();
-        UNLOCK_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
+        UNLOCK_SCRIPT.setLocation(new ClassPathResource("reentrant_unlock.lua"));
         UNLOCK_SCRIPT.setResultType(Long.class);
     }
 
     @Override
     public boolean tryLock(long timeoutSec) {
-        // 获取线程标识 ID_PREFIX可以用来区分不同的JVM，而Thread.currentThread().getId()则区分同一个JVM的不同线程
-        String threadId = ID_PREFIX + Thread.currentThread().getId();
-        // 获取锁
-        Boolean success = stringRedisTemplate.opsForValue()
-                .setIfAbsent(KEY_PREFIX + name, threadId, timeoutSec, TimeUnit.SECONDS);
-        return Boolean.TRUE.equals(success); // 避免自动拆装箱的风险，如Boolean是null的情况
+        return tryAcquire(TimeUnit.SECONDS.toMillis(timeoutSec)) == null;
     }
 
-
     @Override
-    public void unlock() {
-        // 调用lua脚本，满足原子性
-        stringRedisTemplate.execute(
-                UNLOCK_SCRIPT,
+    public boolean tryLock(long waitTime, long leaseTime, TimeUnit unit) throws InterruptedException {
+        boolean watchdog = leaseTime <= 0;
+        if (watchdog && lockSupport == null) {
+            throw new IllegalStateException("没有RedisLockSupport，不能使用看门狗，需要指定锁的有效期");
+        }
+        long leaseMillis = watchdog ? lockSupport.getWatchdogTimeoutMillis() : unit.toMillis(leaseTime);
+        long deadline = System.currentTimeMillis() + unit.toMillis(waitTime);
+        // 1. 先尝试一次
+        Long ttl = tryAcquire(leaseMillis);
+        if (ttl == null) {
+            return onAcquired(watchdog);
+        }
+        if (waitTime <= 0) {
+            return false;
+        }
+        // 2. 订阅释放通知，之后再重试，不会错过订阅之前的释放
+        Semaphore released = lockSupport == null ? null : lockSupport.subscribe(KEY_PREFIX + name);
+        try {
+            while (true) {
+                ttl = tryAcquire(leaseMillis);
+                if (ttl == null) {
+                    return onAcquired(watchdog);
+                }
+                long remain = deadline - System.currentTimeMillis();
+                if (remain <= 0) {
+                    return false;
+                }
+                // 3. 等待释放通知，最多等到锁过期或者等待超时。ttl小于0说明锁刚好被释放或者没有有效期
+                long wait = ttl > 0 ? Math.min(ttl, remain) : remain;
+                if (released == null) {
+                    Thread.sleep(Math.min(wait, POLL_INTERVAL_MILLIS));
+                } else {
+                    released.tryAcquire(wait, TimeUnit.MILLISECONDS);
+                }
+            }
+        } finally {
+            if (released != null) {
+                lockSupport.unsubscribe(KEY_PREFIX + name);
+            }
+        }
+    }
+
+    /***
+     * 执行获取锁的脚本
+     * @return 获取成功返回null，否则返回锁的剩余有效期(毫秒)
+     */
+    private Long tryAcquire(long leaseMillis) {
+        return stringRedisTemplate.execute(
+                LOCK_SCRIPT,
                 Collections.singletonList(KEY_PREFIX + name),
-                ID_PREFIX + Thread.currentThread().getId());
+                threadId(), String.valueOf(leaseMillis));
+    }
+
+    private boolean onAcquired(boolean watchdog) {
+        if (watchdog) {
+            lockSupport.scheduleRenewal(KEY_PREFIX + name, threadId());
+        }
+        return true;
     }
 
-    /*
     @Override
     public void unlock() {
-        // 获取线程标识
-        String threadId = ID_PREFIX + Thread.currentThread().getId();
-        // 获取锁中的线程标识
-        String id = stringRedisTemplate.opsForValue().get(KEY_PREFIX + name);
-        // 判断标示是否一致
-        if(threadId.equals(id)) {
-            // 释放锁
-            stringRedisTemplate.delete(KEY_PREFIX + name);
+        // 调用lua脚本，满足原子性
+        Long result = stringRedisTemplate.execute(
+                UNLOCK_SCRIPT,
+                Collections.singletonList(KEY_PREFIX + name),
+                threadId(), LOCK_RELEASE_CHANNEL);
+        // 完全释放之后停止续期
+        if (lockSupport != null && result != null && result == 1L) {
+            lockSupport.cancelRenewal(KEY_PREFIX + name, threadId());
         }
     }
+
+    /***
+     * 获取线程标识 ID_PREFIX可以用来区分不同的JVM，而Thread.currentThread().getId()则区分同一个JVM的不同线程
      */
+    private static String threadId() {
+        return ID_PREFIX + Thread.currentThread().getId();
+    }
 }
@@ -0,0 +1,95 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.*;
+import java.util.function.Supplier;
+
+/***
+ * 请求合并。同一个JVM中，同一个key同时只有一个线程(leader)真正执行加载，其余线程等待leader的结果，
+ * 避免缓存失效时大量线程同时查询数据库或者抢分布式锁
+ */
+public class SingleFlight {
+    private final ConcurrentHashMap<String, CompletableFuture<Object>> calls = new ConcurrentHashMap<>();
+
+    /***
+     * 执行加载，或者等待正在执行的同一个key的加载结果
+     * @param key 合并的key
+     * @param loader 加载逻辑，只有leader线程会执行
+     * @param timeout 等待其他线程加载的超时时间
+     * @param unit
+     * @return 加载的结果
+     * @param <T>
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T execute(String key, Supplier<T> loader, long timeout, TimeUnit unit) {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> inFlight = calls.putIfAbsent(key, future);
+        if (inFlight == null) {
+            // 1. 没有正在进行的加载，自己作为leader执行
+            try {
+                T value = loader.get();
+                future.complete(value);
+                return value;
+            } catch (RuntimeException | Error e) {
+                future.completeExceptionally(e);
+                throw e;
+            } finally {
+                calls.remove(key, future);
+            }
+        }
+        // 2. 已经有线程在加载，等待它的结果
+        try {
+            return (T) inFlight.get(timeout, unit);
+        } catch (TimeoutException e) {
+            throw new RuntimeException("等待加载超时, key: " + key, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /***
+     * 异步版本，同一个key只有第一个调用者的loader会执行，其余调用者拿到同一个future，不阻塞任何线程
+     * @param key 合并的key
+     * @param loader 返回加载结果的future，只有leader会调用
+     * @return 加载的结果
+     * @param <T>
+     */
+    @SuppressWarnings("unchecked")
+    public <T> CompletableFuture<T> executeAsync(String key, Supplier<CompletableFuture<T>> loader) {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> inFlight = calls.putIfAbsent(key, future);
+        if (inFlight != null) {
+            return (CompletableFuture<T>) (CompletableFuture<?>) inFlight;
+        }
+        CompletableFuture<T> loading;
+        try {
+            loading = loader.get();
+        } catch (RuntimeException | Error e) {
+            loading = new CompletableFuture<>();
+            loading.completeExceptionally(e);
+        }
+        loading.whenComplete((value, e) -> {
+            // 先移除再完成，之后的调用者会重新加载
+            calls.remove(key, future);
+            if (e != null) {
+                future.completeExceptionally(e);
+            } else {
+                future.complete(value);
+            }
+        });
+        return (CompletableFuture<T>) (CompletableFuture<?>) future;
+    }
+
+    /***
+     * 当前正在加载的key的数量
+     */
+    public int inFlightCount() {
+        return calls.size();
+    }
+}
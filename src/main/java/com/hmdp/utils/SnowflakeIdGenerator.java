@@ -0,0 +1,219 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Primary;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Collections;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import static com.hmdp.utils.RedisConstants.ID_WORKER_KEY;
+
+/***
+ * 雪花算法id：1位符号位 + 1位标识位 + 40位毫秒时间戳 + 10位worker id + 12位序列号，在本地计算，不访问redis。
+ * 标识位固定为1，RedisIdWorker 生成的id在这之前(2056年之前)都小于2^62，两种方式切换之后id也不会重复。
+ * worker id 从redis中租用：SET id:worker:n 节点标示 NX PX leaseMillis，后台线程定期续期，
+ * 租约丢失(续期时发现已经被别人占用)时重新租用一个，租约到期之前都没有续期成功时停止生成id，
+ * 保证同一时刻一个worker id只被一个节点使用，自动扩缩容的节点不会冲突。
+ * 时钟回拨不超过 MAX_BACKWARD_MILLIS 时等待时钟追上，超过时抛出异常；同一毫秒内序列号用完时等到下一毫秒。
+ * hmdp.id.generator=snowflake 时启用，并作为首选的 IdGenerator
+ */
+@Slf4j
+@Primary
+@Component
+@ConditionalOnProperty(name = "hmdp.id.generator", havingValue = "snowflake")
+public class SnowflakeIdGenerator implements IdGenerator {
+    /***
+     * 开始时间戳，和 RedisIdWorker 相同，2022-01-01 00:00:00
+     */
+    private static final long BEGIN_TIMESTAMP = 1640995200000L;
+    private static final int WORKER_BITS = 10;
+    private static final int SEQUENCE_BITS = 12;
+    private static final int MAX_WORKERS = 1 << WORKER_BITS;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+    /**
+     * 标识位，区分 RedisIdWorker 生成的id
+     */
+    private static final long FLAG = 1L << 62;
+    /**
+     * 最多等待多少毫秒的时钟回拨
+     */
+    private static final long MAX_BACKWARD_MILLIS = 5;
+
+    private static final DefaultRedisScript<Long> RENEW_SCRIPT;
+    private static final DefaultRedisScript<Long> RELEASE_SCRIPT;
+    static {
+        RENEW_SCRIPT = new DefaultRedisScript<>();
+        RENEW_SCRIPT.setLocation(new ClassPathResource("id_worker_renew.lua"));
+        RENEW_SCRIPT.setResultType(Long.class);
+        RELEASE_SCRIPT = new DefaultRedisScript<>();
+        RELEASE_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
+        RELEASE_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final long leaseMillis;
+    /**
+     * 毫秒时钟，测试时可以替换
+     */
+    private final LongSupplier clock;
+    /**
+     * 当前节点的标示，写入租用的worker id的key中
+     */
+    private final String token = UUID.randomUUID().toString(true);
+
+    private volatile int workerId = -1;
+    /**
+     * 租约到期时间，续期成功时延长
+     */
+    private volatile long leaseExpireAt;
+
+    private long lastTimestamp = -1;
+    private long sequence;
+
+    private ScheduledExecutorService heartbeat;
+
+    @Autowired
+    public SnowflakeIdGenerator(StringRedisTemplate stringRedisTemplate,
+                                @Value("${hmdp.id.snowflake.lease-millis:30000}") long leaseMillis) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.leaseMillis = leaseMillis;
+        this.clock = System::currentTimeMillis;
+    }
+
+    /***
+     * 测试用：使用指定的worker id和租约到期时间，不访问redis，不需要调用 start
+     */
+    SnowflakeIdGenerator(int workerId, long leaseExpireAt, LongSupplier clock) {
+        this.stringRedisTemplate = null;
+        this.leaseMillis = 0;
+        this.clock = clock;
+        this.workerId = workerId;
+        this.leaseExpireAt = leaseExpireAt;
+    }
+
+    /***
+     * 租用worker id，并启动续期线程
+     */
+    @PostConstruct
+    public void start() {
+        lease();
+        heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "id-worker-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = Math.max(1, leaseMillis / 3);
+        heartbeat.scheduleWithFixedDelay(this::renew, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /***
+     * 停止续期并释放worker id
+     */
+    @PreDestroy
+    public void stop() {
+        if (heartbeat != null) {
+            heartbeat.shutdownNow();
+        }
+        int id = workerId;
+        if (id >= 0) {
+            stringRedisTemplate.execute(RELEASE_SCRIPT, Collections.singletonList(ID_WORKER_KEY + id), token);
+        }
+    }
+
+    @Override
+    public synchronized long nextId(String keyPrefix) {
+        // 1. 租约已经过期，worker id可能已经被其他节点使用
+        long now = clock.getAsLong();
+        if (now >= leaseExpireAt) {
+            throw new IllegalStateException("worker id租约已经过期, workerId: " + workerId);
+        }
+        // 2. 时钟回拨，回拨很少时等待时钟追上
+        if (now < lastTimestamp) {
+            long offset = lastTimestamp - now;
+            if (offset > MAX_BACKWARD_MILLIS) {
+                throw new IllegalStateException("时钟回拨了 " + offset + "ms，拒绝生成id");
+            }
+            now = waitUntilAfter(lastTimestamp - 1);
+        }
+        // 3. 同一毫秒内自增序列号，用完时等到下一毫秒
+        if (now == lastTimestamp) {
+            sequence = (sequence + 1) & SEQUENCE_MASK;
+            if (sequence == 0) {
+                now = waitUntilAfter(lastTimestamp);
+            }
+        } else {
+            sequence = 0;
+        }
+        lastTimestamp = now;
+        // 4. 拼接并返回
+        return FLAG
+                | (now - BEGIN_TIMESTAMP) << (WORKER_BITS + SEQUENCE_BITS)
+                | (long) workerId << SEQUENCE_BITS
+                | sequence;
+    }
+
+    private long waitUntilAfter(long timestamp) {
+        long now = clock.getAsLong();
+        while (now <= timestamp) {
+            Thread.yield();
+            now = clock.getAsLong();
+        }
+        return now;
+    }
+
+    /***
+     * 从随机位置开始依次尝试 SET id:worker:n token NX PX leaseMillis，节点多时减少冲突
+     */
+    private void lease() {
+        int start = ThreadLocalRandom.current().nextInt(MAX_WORKERS);
+        for (int i = 0; i < MAX_WORKERS; i++) {
+            int id = (start + i) % MAX_WORKERS;
+            long now = clock.getAsLong();
+            Boolean success = stringRedisTemplate.opsForValue()
+                    .setIfAbsent(ID_WORKER_KEY + id, token, leaseMillis, TimeUnit.MILLISECONDS);
+            if (Boolean.TRUE.equals(success)) {
+                synchronized (this) {
+                    workerId = id;
+                    leaseExpireAt = now + leaseMillis;
+                }
+                log.info("租用worker id: {}", id);
+                return;
+            }
+        }
+        throw new IllegalStateException("没有可用的worker id");
+    }
+
+    /***
+     * 续期，租约已经丢失时重新租用
+     */
+    private void renew() {
+        try {
+            long now = clock.getAsLong();
+            Long result = stringRedisTemplate.execute(RENEW_SCRIPT, Collections.singletonList(ID_WORKER_KEY + workerId),
+                    token, String.valueOf(leaseMillis));
+            if (result != null && result == 1L) {
+                leaseExpireAt = now + leaseMillis;
+                return;
+            }
+            log.warn("worker id租约已经丢失，重新租用, workerId: {}", workerId);
+            lease();
+        } catch (Exception e) {
+            // 下次继续续期，租约到期之前都没有成功时 nextId 会失败
+            log.error("worker id续期失败, workerId: {}", workerId, e);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_SOLD_OUT_CHANNEL;
+
+/***
+ * 进程内的秒杀券售罄标识。lua脚本返回库存不足时标记售罄，并通过发布订阅通知所有节点，
+ * 之后这张券的秒杀请求在本地直接返回，不再访问redis。补充库存时清除所有节点的标识。
+ * 标识在 ttlMillis 之后失效，期间错过的清除通知(消息乱序、节点重启时没有收到)最多影响这么长时间，
+ * 失效之后下一个请求重新执行lua脚本确认
+ */
+@Slf4j
+@Component
+public class SoldOutRegistry {
+    private static final String SOLD_OUT = "1";
+    private static final String CLEARED = "0";
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final RedisMessageListenerContainer listenerContainer;
+    private final long ttlMillis;
+
+    /**
+     * 优惠券id -> 标记售罄的时间
+     */
+    private final Map<Long, Long> soldOut = new ConcurrentHashMap<>();
+
+    public SoldOutRegistry(StringRedisTemplate stringRedisTemplate,
+                           RedisMessageListenerContainer listenerContainer,
+                           @Value("${hmdp.seckill.sold-out-ttl-millis:5000}") long ttlMillis) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.listenerContainer = listenerContainer;
+        this.ttlMillis = ttlMillis;
+    }
+
+    @PostConstruct
+    private void init() {
+        // 消息格式 优惠券id:1 表示售罄，优惠券id:0 表示补充了库存
+        listenerContainer.addMessageListener((message, pattern) -> {
+            String body = new String(message.getBody(), StandardCharsets.UTF_8);
+            int index = body.indexOf(':');
+            if (index < 0) {
+                return;
+            }
+            try {
+                Long voucherId = Long.valueOf(body.substring(0, index));
+                if (SOLD_OUT.equals(body.substring(index + 1))) {
+                    soldOut.put(voucherId, System.currentTimeMillis());
+                } else {
+                    soldOut.remove(voucherId);
+                }
+            } catch (NumberFormatException e) {
+                log.warn("无法解析的售罄通知: {}", body);
+            }
+        }, new ChannelTopic(SECKILL_SOLD_OUT_CHANNEL));
+    }
+
+    /***
+     * 本地判断是否已经售罄
+     * @param voucherId
+     * @return
+     */
+    public boolean isSoldOut(Long voucherId) {
+        Long markedAt = soldOut.get(voucherId);
+        if (markedAt == null) {
+            return false;
+        }
+        if (System.currentTimeMillis() - markedAt >= ttlMillis) {
+            soldOut.remove(voucherId, markedAt);
+            return false;
+        }
+        return true;
+    }
+
+    /***
+     * 标记售罄并通知所有节点，本节点已经标记过(并且没有过期)时不重复通知
+     * @param voucherId
+     */
+    public void markSoldOut(Long voucherId) {
+        long now = System.currentTimeMillis();
+        Long markedAt = soldOut.put(voucherId, now);
+        if (markedAt == null || now - markedAt >= ttlMillis) {
+            publish(voucherId, SOLD_OUT);
+        }
+    }
+
+    /***
+     * 补充库存之后清除所有节点的售罄标识
+     * @param voucherId
+     */
+    public void clear(Long voucherId) {
+        soldOut.remove(voucherId);
+        publish(voucherId, CLEARED);
+    }
+
+    private void publish(Long voucherId, String state) {
+        try {
+            stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, voucherId + ":" + state);
+        } catch (Exception e) {
+            // 通知失败时其他节点的标识等ttl过期，或者自己执行lua脚本时发现
+            log.warn("发送售罄通知失败, voucherId: {}", voucherId, e);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.hmdp.utils;
+
+import cn.hutool.cache.Cache;
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.core.bean.BeanUtil;
+import com.hmdp.dto.UserDTO;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/***
+ * 登录token的进程内缓存，放在 login:token:* 前面，每个请求不用再 HGETALL 和反射创建 UserDTO。
+ * 1. 本地缓存的有效期很短，token在redis中被删除而没有收到通知时，最多在这么长时间内仍然有效；
+ * 2. token的有效期在每个刷新间隔内最多续期一次，续期时发现token已经不存在则同时删除本地缓存。
+ *    上次续期的时间单独保存，不随本地缓存过期；本地缓存的有效期必须小于刷新间隔，启动时检查；
+ * 3. 登出时删除redis中的token，并通过发布订阅通知所有节点删除本地缓存。
+ * 注意：缓存的是同一个 UserDTO 对象，调用者拿到之后不要修改它
+ */
+@Slf4j
+@Component
+public class TokenCache {
+    private final StringRedisTemplate stringRedisTemplate;
+    private final RedisMessageListenerContainer listenerContainer;
+    private final boolean enabled;
+    private final long refreshIntervalMillis;
+    private final Cache<String, UserDTO> cache;
+    /**
+     * token -> 上次续期的时间，超过刷新间隔的记录可以丢弃，丢弃后下一个请求续期
+     */
+    private final Cache<String, AtomicLong> refreshes;
+
+    public TokenCache(StringRedisTemplate stringRedisTemplate,
+                      RedisMessageListenerContainer listenerContainer,
+                      @Value("${hmdp.login.token-cache.enabled:true}") boolean enabled,
+                      @Value("${hmdp.login.token-cache.maximum-size:100000}") int maximumSize,
+                      @Value("${hmdp.login.token-cache.ttl-millis:10000}") long ttlMillis,
+                      @Value("${hmdp.login.token-cache.refresh-interval-millis:60000}") long refreshIntervalMillis) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.listenerContainer = listenerContainer;
+        this.enabled = enabled;
+        this.refreshIntervalMillis = refreshIntervalMillis;
+        if (ttlMillis >= refreshIntervalMillis) {
+            throw new IllegalArgumentException("hmdp.login.token-cache.ttl-millis 必须小于 refresh-interval-millis, ttl: "
+                    + ttlMillis + ", refresh interval: " + refreshIntervalMillis);
+        }
+        this.cache = CacheUtil.newLRUCache(maximumSize, ttlMillis);
+        this.refreshes = CacheUtil.newLRUCache(maximumSize, refreshIntervalMillis);
+    }
+
+    @PostConstruct
+    private void init() {
+        // 订阅登出通知，收到的消息体就是要删除的token
+        listenerContainer.addMessageListener((message, pattern) -> {
+            String token = new String(message.getBody(), StandardCharsets.UTF_8);
+            cache.remove(token);
+            refreshes.remove(token);
+        }, new ChannelTopic(LOGIN_TOKEN_REVOKE_CHANNEL));
+    }
+
+    /***
+     * 根据token查询登录用户，并按刷新间隔续期token的有效期
+     * @param token
+     * @return token不存在或者已经过期时返回null
+     */
+    public UserDTO get(String token) {
+        String key = LOGIN_USER_KEY + token;
+        // 1. 查询本地缓存
+        UserDTO userDTO = enabled ? cache.get(token, false) : null;
+        if (userDTO == null) {
+            // 2. 未命中，基于TOKEN获取redis中的用户
+            Map<Object, Object> userMap = stringRedisTemplate.opsForHash().entries(key);
+            if (userMap.isEmpty()) {
+                return null;
+            }
+            // 3. 将查询到的hash数据转为UserDTO，写入本地缓存
+            userDTO = BeanUtil.fillBeanWithMap(userMap, new UserDTO(), false);
+            if (enabled) {
+                cache.put(token, userDTO);
+            }
+        }
+        // 4. 距离上次续期超过刷新间隔时续期token有效期
+        if (refreshDue(token) && !Boolean.TRUE.equals(stringRedisTemplate.expire(key, LOGIN_USER_TTL, TimeUnit.MINUTES))) {
+            // token已经不存在了(过期或者已经登出)
+            cache.remove(token);
+            refreshes.remove(token);
+            return null;
+        }
+        return userDTO;
+    }
+
+    /***
+     * 判断是否需要续期，没有开启本地缓存时每次都续期。多个请求同时到达时只有一个返回true
+     */
+    private boolean refreshDue(String token) {
+        if (!enabled) {
+            return true;
+        }
+        long now = System.currentTimeMillis();
+        AtomicLong last = refreshes.get(token, false, () -> new AtomicLong());
+        long previous = last.get();
+        return now - previous >= refreshIntervalMillis && last.compareAndSet(previous, now);
+    }
+
+    /***
+     * 登出：删除redis中的token，并通知所有节点删除本地缓存
+     * @param token
+     */
+    public void revoke(String token) {
+        stringRedisTemplate.delete(LOGIN_USER_KEY + token);
+        cache.remove(token);
+        refreshes.remove(token);
+        try {
+            stringRedisTemplate.convertAndSend(LOGIN_TOKEN_REVOKE_CHANNEL, token);
+        } catch (Exception e) {
+            // 通知失败时其他节点等本地缓存过期，或者续期时发现token已经不存在
+            log.error("广播登出消息失败", e);
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/***
+ * 两级锁：先获取JVM内按名称区分的 ReentrantLock，同一个节点内的竞争在本地解决，不访问redis；
+ * 只有可能出现跨节点竞争时(distributed=true)才再获取redisson的分布式锁 lock:名称。
+ * 每个名称有自己的本地锁，不同名称之间不会互相影响；本地锁按引用计数保存，没有线程持有或者等待时删除。
+ * 导出指标：
+ * <ul>
+ *     <li>lock.acquire：获取锁的耗时，标签 tier(local/distributed)</li>
+ *     <li>lock.contended：获取锁失败的次数，标签 tier</li>
+ * </ul>
+ */
+@Component
+public class TwoTierLockManager {
+    private static final String LOCAL = "local";
+    private static final String DISTRIBUTED = "distributed";
+
+    private final RedissonClient redissonClient;
+    private final boolean distributed;
+    /**
+     * 名称 -> 本地锁，正在使用的名称才有记录
+     */
+    private final ConcurrentHashMap<String, LocalLock> locals = new ConcurrentHashMap<>();
+
+    private final Timer localAcquire;
+    private final Timer distributedAcquire;
+    private final Counter localContended;
+    private final Counter distributedContended;
+
+    public TwoTierLockManager(RedissonClient redissonClient, MeterRegistry registry,
+                              @Value("${hmdp.lock.two-tier.distributed:true}") boolean distributed) {
+        this.redissonClient = redissonClient;
+        this.distributed = distributed;
+        this.localAcquire = Timer.builder("lock.acquire").tag("tier", LOCAL).register(registry);
+        this.distributedAcquire = Timer.builder("lock.acquire").tag("tier", DISTRIBUTED).register(registry);
+        this.localContended = Counter.builder("lock.contended").tag("tier", LOCAL).register(registry);
+        this.distributedContended = Counter.builder("lock.contended").tag("tier", DISTRIBUTED).register(registry);
+    }
+
+    /***
+     * 获取锁对象，锁本身没有状态，可以每次获取
+     * @param name 锁的名称，分布式锁的key是 lock:名称
+     * @return
+     */
+    public ILock getLock(String name) {
+        return new TwoTierLock(name);
+    }
+
+    /***
+     * 获取名称对应的本地锁并增加引用计数，每次调用都要有一次 release
+     */
+    private ReentrantLock retain(String name) {
+        return locals.compute(name, (k, v) -> {
+            LocalLock l = v == null ? new LocalLock() : v;
+            l.refs++;
+            return l;
+        }).lock;
+    }
+
+    /***
+     * 减少引用计数，没有线程再使用时删除
+     */
+    private void release(String name) {
+        locals.computeIfPresent(name, (k, v) -> --v.refs == 0 ? null : v);
+    }
+
+    private static class LocalLock {
+        private final ReentrantLock lock = new ReentrantLock();
+        /**
+         * 持有或者正在获取这个锁的次数，只在 ConcurrentHashMap.compute 中修改
+         */
+        private int refs;
+    }
+
+    private class TwoTierLock implements ILock {
+        private final String name;
+
+        private TwoTierLock(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public boolean tryLock(long timeoutSec) {
+            try {
+                return tryLock(0, timeoutSec, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        @Override
+        public boolean tryLock(long waitTime, long leaseTime, TimeUnit unit) throws InterruptedException {
+            long waitNanos = unit.toNanos(waitTime);
+            long start = System.nanoTime();
+            // 1. 本地锁，同一个节点内的竞争在这里失败，不会访问redis
+            ReentrantLock local = retain(name);
+            boolean locked = false;
+            try {
+                locked = waitNanos <= 0 ? local.tryLock() : local.tryLock(waitNanos, TimeUnit.NANOSECONDS);
+            } finally {
+                if (!locked) {
+                    release(name);
+                }
+            }
+            long localCost = System.nanoTime() - start;
+            localAcquire.record(localCost, TimeUnit.NANOSECONDS);
+            if (!locked) {
+                localContended.increment();
+                return false;
+            }
+            if (!distributed) {
+                return true;
+            }
+            // 2. 分布式锁，剩余的等待时间用来等待其他节点释放。leaseTime小于等于0时由redisson的看门狗续期
+            long remain = Math.max(0, waitNanos - localCost);
+            boolean success = false;
+            try {
+                long distributedStart = System.nanoTime();
+                RLock redisLock = redissonClient.getLock("lock:" + name);
+                success = leaseTime > 0
+                        ? redisLock.tryLock(remain, unit.toNanos(leaseTime), TimeUnit.NANOSECONDS)
+                        : redisLock.tryLock(remain, TimeUnit.NANOSECONDS);
+                distributedAcquire.record(System.nanoTime() - distributedStart, TimeUnit.NANOSECONDS);
+                if (!success) {
+                    distributedContended.increment();
+                }
+                return success;
+            } finally {
+                if (!success) {
+                    local.unlock();
+                    release(name);
+                }
+            }
+        }
+
+        @Override
+        public void unlock() {
+            // 和获取的顺序相反，先释放分布式锁
+            try {
+                if (distributed) {
+                    redissonClient.getLock("lock:" + name).unlock();
+                }
+            } finally {
+                LocalLock l = locals.get(name);
+                if (l == null) {
+                    throw new IllegalMonitorStateException("当前线程没有持有锁: " + name);
+                }
+                l.lock.unlock();
+                release(name);
+            }
+        }
+    }
+}
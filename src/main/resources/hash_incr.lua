@@ -0,0 +1,7 @@
+-- 原地增加hash缓存中的计数字段
+-- KEYS[1] 缓存的key，ARGV[1] 字段，ARGV[2] 增量
+-- 只有缓存存在并且不是空值时才更新，返回更新后的值；缓存不存在时返回nil
+if (redis.call('HGET', KEYS[1], '_') ~= '1') then
+    return nil
+end
+return redis.call('HINCRBY', KEYS[1], ARGV[1], ARGV[2])
@@ -0,0 +1,10 @@
+-- 部分更新hash缓存中的字段
+-- KEYS[1] 缓存的key，ARGV 为 字段1 值1 字段2 值2 ...
+-- 只有缓存存在并且不是空值时才更新，缓存不存在时不能写入，否则会得到只有部分字段的数据
+if (redis.call('HGET', KEYS[1], '_') ~= '1') then
+    return 0
+end
+for i = 1, #ARGV, 2 do
+    redis.call('HSET', KEYS[1], ARGV[i], ARGV[i + 1])
+end
+return 1
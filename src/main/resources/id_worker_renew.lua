@@ -0,0 +1,7 @@
+-- 这里的 KEYS[1] 就是worker id的key，ARGV[1] 是当前节点的标示，ARGV[2] 是租约时长(毫秒)
+-- 标示一致说明租约还是自己的，续期
+if (redis.call('GET', KEYS[1]) == ARGV[1]) then
+  return redis.call('PEXPIRE', KEYS[1], ARGV[2])
+end
+-- 不一致，说明租约已经过期甚至被其他节点占用
+return 0
@@ -0,0 +1,10 @@
+-- 可重入锁，锁是一个hash，field 是线程标示，value 是重入次数
+-- KEYS[1] 锁的key，ARGV[1] 线程标示，ARGV[2] 锁的有效期(毫秒)
+-- 锁不存在或者是自己持有的锁，重入次数+1，并重置有效期
+if (redis.call('EXISTS', KEYS[1]) == 0 or redis.call('HEXISTS', KEYS[1], ARGV[1]) == 1) then
+  redis.call('HINCRBY', KEYS[1], ARGV[1], 1)
+  redis.call('PEXPIRE', KEYS[1], ARGV[2])
+  return nil
+end
+-- 被其他线程持有，返回锁的剩余有效期，调用方最多等待这么久
+return redis.call('PTTL', KEYS[1])
@@ -0,0 +1,6 @@
+-- KEYS[1] 锁的key，ARGV[1] 线程标示，ARGV[2] 锁的有效期(毫秒)
+-- 还是自己持有的锁，续期
+if (redis.call('HEXISTS', KEYS[1], ARGV[1]) == 1) then
+  return redis.call('PEXPIRE', KEYS[1], ARGV[2])
+end
+return 0
@@ -0,0 +1,13 @@
+-- KEYS[1] 锁的key，ARGV[1] 线程标示，ARGV[2] 释放锁的通知频道
+-- 不是自己持有的锁(可能已经过期)，直接返回
+if (redis.call('HEXISTS', KEYS[1], ARGV[1]) == 0) then
+  return nil
+end
+-- 重入次数-1，还没有减到0说明外层还持有锁，返回0
+if (redis.call('HINCRBY', KEYS[1], ARGV[1], -1) > 0) then
+  return 0
+end
+-- 完全释放，删除锁并通知等待的线程，返回1
+redis.call('DEL', KEYS[1])
+redis.call('PUBLISH', ARGV[2], KEYS[1])
+return 1
@@ -1,32 +1,52 @@
+-- 秒杀资格判断和扣减库存。所有key都带 {优惠券id} 的hash tag，集群中落在同一个slot，脚本不拼接key
 -- 1.参数列表
--- 1.1.优惠券id
-local voucherId = ARGV[1]
--- 1.2.用户id
-local userId = ARGV[2]
--- 1.3.订单id
-local orderId = ARGV[3]
+-- KEYS[1] 秒杀券key seckill:voucher:{id}，hash中保存开始时间、结束时间和分段数
+-- KEYS[2] 订单key seckill:order:{id}，已经下单的用户，所有分段共用
+-- KEYS[3] 售罄标识key seckill:soldout:{id}
+-- KEYS[4...] 分段库存key seckill:stock:{id}:段号，段号从0开始，可以多传
+-- ARGV[1] 用户id
+-- ARGV[2] 当前时间，毫秒时间戳
+local voucherKey = KEYS[1]
+local orderKey = KEYS[2]
+local soldOutKey = KEYS[3]
+local userId = ARGV[1]
+local now = tonumber(ARGV[2])
 
--- 2.数据key
--- 2.1.库存key
-local stockKey = 'seckill:stock:' .. voucherId
--- 2.2.订单key
-local orderKey = 'seckill:order:' .. voucherId
-
--- 3.脚本业务
--- 3.1.判断库存是否充足 get stockKey
-if(tonumber(redis.call('get', stockKey)) <= 0) then
-    -- 3.2.库存不足，返回1
-    return 1
+-- 返回 {结果, 段号}：0 成功，段号是扣减的分段；1 库存不足；2 重复下单；3 尚未开始；4 已经结束；
+-- 5 传入的分段key不够，段号位置是实际的分段数，调用者补齐之后重试
+-- 2.判断秒杀时间，还没有预热到redis中的优惠券当作尚未开始
+local info = redis.call('hmget', voucherKey, 'begin', 'end', 'segments')
+if(info[1] == false or now < tonumber(info[1])) then
+    return {3, -1}
+end
+if(now > tonumber(info[2])) then
+    return {4, -1}
+end
+-- 3.已经售罄，直接返回1，不再逐段检查库存
+if(redis.call('exists', soldOutKey) == 1) then
+    return {1, -1}
 end
--- 3.2.判断用户是否下单 SISMEMBER orderKey userId
+-- 4.判断用户是否下单 SISMEMBER orderKey userId
 if(redis.call('sismember', orderKey, userId) == 1) then
-    -- 3.3.存在，说明是重复下单，返回2
-    return 2
+    -- 存在，说明是重复下单，返回2
+    return {2, -1}
+end
+-- 5.扣库存：按用户id选择起始分段，库存不足时依次尝试后面的分段
+local segments = tonumber(info[3]) or 1
+if(segments > #KEYS - 3) then
+    return {5, segments}
+end
+local start = tonumber(userId) % segments
+for i = 0, segments - 1 do
+    local segment = (start + i) % segments
+    local stockKey = KEYS[4 + segment]
+    if((tonumber(redis.call('get', stockKey)) or 0) > 0) then
+        redis.call('incrby', stockKey, -1)
+        -- 6.下单（保存用户）sadd orderKey userId
+        redis.call('sadd', orderKey, userId)
+        return {0, segment}
+    end
 end
--- 3.4.扣库存 incrby stockKey -1
-redis.call('incrby', stockKey, -1)
--- 3.5.下单（保存用户）sadd orderKey userId
-redis.call('sadd', orderKey, userId)
--- 3.6.发送消息到队列中， XADD stream.orders * k1 v1 k2 v2 ...
-redis.call('xadd', 'stream.orders', '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
-return 0
\ No newline at end of file
+-- 7.所有分段的库存都不足，设置售罄标识，返回1
+redis.call('set', soldOutKey, '1')
+return {1, -1}
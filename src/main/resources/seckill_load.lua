@@ -0,0 +1,36 @@
+-- 把秒杀券加载到redis中，所有key都带 {优惠券id} 的hash tag
+-- 1.参数列表
+-- KEYS[1] 秒杀券key，KEYS[2] 售罄标识key，KEYS[3...] 分段库存key，
+--   个数是新旧分段数中较大的一个，新分段数之后的key是要删除的旧分段
+-- ARGV: 库存、开始时间、结束时间(毫秒时间戳)、分段数、是否覆盖已经加载的数据
+local voucherKey = KEYS[1]
+local soldOutKey = KEYS[2]
+local stock = tonumber(ARGV[1])
+local beginTime = ARGV[2]
+local endTime = ARGV[3]
+local segments = tonumber(ARGV[4])
+local force = ARGV[5]
+
+-- 2.已经加载过并且不是强制覆盖时不做任何操作，不会覆盖秒杀进行中的库存
+if(force ~= '1' and redis.call('exists', voucherKey) == 1) then
+    return 0
+end
+-- 3.写入时间和分段数
+redis.call('hmset', voucherKey, 'begin', beginTime, 'end', endTime, 'segments', segments)
+-- 4.库存平均分到各段，余数分给前面的分段，多出来的旧分段删除
+local base = math.floor(stock / segments)
+local rest = stock % segments
+for i = 0, #KEYS - 3 do
+    if(i < segments) then
+        local segmentStock = base
+        if(i < rest) then
+            segmentStock = base + 1
+        end
+        redis.call('set', KEYS[3 + i], segmentStock)
+    else
+        redis.call('del', KEYS[3 + i])
+    end
+end
+-- 5.清除售罄标识
+redis.call('del', soldOutKey)
+return 1
@@ -0,0 +1,12 @@
+-- 撤销一次秒杀：订单写入stream失败时，把扣减的库存加回去并删除下单记录
+-- KEYS[1] 秒杀券key，KEYS[2] 订单key，KEYS[3] 售罄标识key，KEYS[4] 扣减的分段库存key
+-- ARGV[1] 用户id
+-- 秒杀券已经卸载时不做任何操作
+if(redis.call('exists', KEYS[1]) == 0) then
+    return 0
+end
+redis.call('incrby', KEYS[4], 1)
+redis.call('srem', KEYS[2], ARGV[1])
+-- 有库存了，清除售罄标识
+redis.call('del', KEYS[3])
+return 1
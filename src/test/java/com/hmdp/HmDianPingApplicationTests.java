@@ -3,36 +3,48 @@ package com.hmdp;
 import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.bean.copier.CopyOptions;
 import cn.hutool.core.lang.UUID;
+import cn.hutool.core.util.BooleanUtil;
 import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.entity.Shop;
 import com.hmdp.entity.User;
 import com.hmdp.service.impl.ShopServiceImpl;
 import com.hmdp.service.impl.UserServiceImpl;
 import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.IdGenerator;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.RedisLockSupport;
+import com.hmdp.utils.SeckillPreheater;
+import com.hmdp.utils.SimpleRedisLock;
+import com.hmdp.utils.SnowflakeIdGenerator;
 import org.junit.jupiter.api.Test;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
 import org.springframework.beans.BeanUtils;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.core.io.ClassPathResource;
 import org.springframework.data.geo.Point;
 import org.springframework.data.redis.connection.RedisGeoCommands;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 
 import javax.annotation.Resource;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.*;
+import static org.junit.jupiter.api.Assertions.assertEquals;
 
 @SpringBootTest
 class HmDianPingApplicationTests {
@@ -47,6 +59,15 @@ class HmDianPingApplicationTests {
     @Resource
     private UserServiceImpl userService;
 
+    @Resource
+    private SeckillPreheater seckillPreheater;
+
+    @Resource
+    private RedisLockSupport redisLockSupport;
+
+    @Resource
+    private RedissonClient redissonClient;
+
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
@@ -71,6 +92,113 @@ class HmDianPingApplicationTests {
         System.out.println("time = " + (end - begin));
     }
 
+    /***
+     * RedisIdWorker 和 SnowflakeIdGenerator 的多线程吞吐量，同时检查生成的id没有重复。
+     * 雪花算法的实例在测试中单独创建，测试结束后释放租用的worker id
+     */
+    @Test
+    void benchmarkIdGenerators() throws InterruptedException {
+        SnowflakeIdGenerator snowflake = new SnowflakeIdGenerator(stringRedisTemplate, 30000);
+        snowflake.start();
+        try {
+            benchmarkIdGenerator("redis", redisIdWorker);
+            benchmarkIdGenerator("snowflake", snowflake);
+        } finally {
+            snowflake.stop();
+        }
+    }
+
+    private void benchmarkIdGenerator(String name, IdGenerator generator) throws InterruptedException {
+        int threads = 300;
+        int idsPerThread = 1000;
+        Set<Long> ids = ConcurrentHashMap.newKeySet(threads * idsPerThread);
+        CountDownLatch latch = new CountDownLatch(threads);
+        long begin = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            es.submit(() -> {
+                try {
+                    for (int i = 0; i < idsPerThread; i++) {
+                        ids.add(generator.nextId("order"));
+                    }
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+        latch.await();
+        long costMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin));
+        System.out.println(name + ": ids = " + ids.size() + "/" + threads * idsPerThread + ", cost = " + costMillis
+                + "ms, qps = " + (long) threads * idsPerThread * 1000 / costMillis);
+        // 没有重复的id
+        assertEquals(threads * idsPerThread, ids.size());
+    }
+
+    /***
+     * 多个线程争抢同一把锁时的吞吐量：SETNX加轮询(原来的SimpleRedisLock和CacheClient的做法)、
+     * 可重入的SimpleRedisLock(等待释放通知)、Redisson。每次获取锁之后给计数器加1，检查互斥是否正确
+     */
+    @Test
+    void benchmarkLocks() throws InterruptedException {
+        String key = "lock:benchmark";
+        benchmarkLock("setnx+poll", () -> {
+            long deadline = System.currentTimeMillis() + 10000;
+            while (System.currentTimeMillis() < deadline) {
+                if (BooleanUtil.isTrue(stringRedisTemplate.opsForValue().setIfAbsent(key, "1", 10, TimeUnit.SECONDS))) {
+                    return true;
+                }
+                Thread.sleep(50);
+            }
+            return false;
+        }, () -> stringRedisTemplate.delete(key));
+        // 锁的标示和线程相关，同一个对象可以在多个线程中使用
+        SimpleRedisLock simpleRedisLock = new SimpleRedisLock("benchmark", stringRedisTemplate, redisLockSupport);
+        benchmarkLock("SimpleRedisLock", () -> simpleRedisLock.tryLock(10, 10, TimeUnit.SECONDS), simpleRedisLock::unlock);
+        RLock redissonLock = redissonClient.getLock(key);
+        benchmarkLock("Redisson", () -> redissonLock.tryLock(10, 10, TimeUnit.SECONDS), redissonLock::unlock);
+    }
+
+    private interface LockAction {
+        boolean lock() throws InterruptedException;
+    }
+
+    private void benchmarkLock(String name, LockAction lock, Runnable unlock) throws InterruptedException {
+        int threads = 50;
+        int locksPerThread = 20;
+        AtomicLong acquired = new AtomicLong();
+        long[] counter = new long[1];
+        CountDownLatch latch = new CountDownLatch(threads);
+        long begin = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            es.submit(() -> {
+                try {
+                    for (int i = 0; i < locksPerThread; i++) {
+                        if (!lock.lock()) {
+                            continue;
+                        }
+                        try {
+                            // 锁保护的非原子操作，互斥正确时结果等于获取成功的次数
+                            counter[0] = counter[0] + 1;
+                            acquired.incrementAndGet();
+                        } finally {
+                            unlock.run();
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+        latch.await();
+        long costMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin));
+        System.out.println(name + ": acquired = " + acquired.get() + "/" + threads * locksPerThread
+                + ", counter = " + counter[0] + ", cost = " + costMillis
+                + "ms, qps = " + acquired.get() * 1000 / costMillis);
+        // 计数器只在持有锁时修改，没有丢失的更新说明锁是互斥的
+        assertEquals(acquired.get(), counter[0]);
+    }
+
     @Test
     void testSaveShop() throws InterruptedException {
         Shop shop = shopService.getById(1L);
@@ -140,4 +268,63 @@ class HmDianPingApplicationTests {
             stringRedisTemplate.opsForGeo().add(key, locations);
         }
     }
+
+    /***
+     * 秒杀脚本在不同库存分段数下的吞吐量，并检查每种分段数下成功的请求数正好等于库存。
+     * 使用不存在的优惠券id，只执行秒杀脚本，不调用 seckillVoucher，所以不会写入 stream.orders、不会创建订单，
+     * 并检查 stream.orders 的长度没有变化。每种分段数结束后卸载测试数据：券的hash、各个分段的库存、下单用户集合和售罄标记。
+     * 注意：同一张券的所有分段带同一个hash tag，在同一个redis节点上串行执行，分段只是把一个key的读写分散到多个key上，
+     * 吞吐量不会随分段数明显增加；库存不足的分段越多，每次要多读的key越多
+     */
+    @Test
+    void benchmarkSeckillSegments() throws InterruptedException {
+        DefaultRedisScript<List> script = new DefaultRedisScript<>();
+        script.setLocation(new ClassPathResource("seckill.lua"));
+        script.setResultType(List.class);
+        int threads = 64;
+        int requestsPerThread = 500;
+        int stock = threads * requestsPerThread / 2;
+        Long streamLength = stringRedisTemplate.opsForStream().size(SECKILL_ORDER_STREAM);
+        for (int segments : new int[]{1, 2, 4, 8, 16}) {
+            long voucherId = 900000L + segments;
+            SeckillVoucher voucher = new SeckillVoucher().setVoucherId(voucherId).setStock(stock)
+                    .setBeginTime(LocalDateTime.now().minusMinutes(1)).setEndTime(LocalDateTime.now().plusHours(1));
+            seckillPreheater.unload(voucherId);
+            AtomicLong succeeded = new AtomicLong();
+            try {
+                seckillPreheater.load(voucher, segments, true);
+                List<String> keys = seckillPreheater.scriptKeys(voucherId);
+                CountDownLatch latch = new CountDownLatch(threads);
+                long begin = System.nanoTime();
+                for (int t = 0; t < threads; t++) {
+                    int thread = t;
+                    es.submit(() -> {
+                        try {
+                            for (int i = 0; i < requestsPerThread; i++) {
+                                // 每个请求使用不同的用户，不会因为重复下单被拒绝
+                                long userId = (long) thread * requestsPerThread + i + 1;
+                                List<?> result = stringRedisTemplate.execute(script, keys,
+                                        String.valueOf(userId), String.valueOf(System.currentTimeMillis()));
+                                if (result != null && Long.valueOf(0).equals(result.get(0))) {
+                                    succeeded.incrementAndGet();
+                                }
+                            }
+                        } finally {
+                            latch.countDown();
+                        }
+                    });
+                }
+                latch.await();
+                long costMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin));
+                System.out.println("segments = " + segments + ", succeeded = " + succeeded.get() + ", cost = "
+                        + costMillis + "ms, qps = " + (long) threads * requestsPerThread * 1000 / costMillis);
+            } finally {
+                // 删除测试数据，断言失败或者异常时也要删除
+                seckillPreheater.unload(voucherId);
+            }
+            assertEquals(stock, succeeded.get());
+        }
+        // 脚本不写入stream，真实的消费者不会收到压测的订单
+        assertEquals(streamLength, stringRedisTemplate.opsForStream().size(SECKILL_ORDER_STREAM));
+    }
 }
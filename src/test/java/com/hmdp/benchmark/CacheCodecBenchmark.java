@@ -0,0 +1,130 @@
+package com.hmdp.benchmark;
+
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import com.hmdp.entity.Blog;
+import com.hmdp.entity.Shop;
+import com.hmdp.utils.CacheCodec;
+import com.hmdp.utils.CacheCodecs;
+import com.hmdp.utils.RedisData;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+
+/***
+ * 比较各个缓存序列化方式在 Shop 和 Blog 上的性能，同时打印序列化后的大小。
+ * 运行：mvn test-compile 后执行 main 方法
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CacheCodecBenchmark {
+
+    @Param({"json", "binary", "deflate"})
+    private String codecName;
+
+    private CacheCodec codec;
+    private Shop shop;
+    private Blog blog;
+    private RedisData logicalShop;
+    private byte[] shopBytes;
+    private byte[] blogBytes;
+    private byte[] logicalShopBytes;
+    /**
+     * 改造之前逻辑过期数据的写法，用来对比两次序列化的开销
+     */
+    private String legacyLogicalShopJson;
+
+    @Setup
+    public void setup() {
+        codec = CacheCodecs.of(codecName);
+        shop = new Shop()
+                .setId(1L)
+                .setName("103茶餐厅")
+                .setTypeId(1L)
+                .setImages("https://qcloud.dpfile.com/pc/jiclIsCKmOI2arxKN1Uf0Hx3PucIJH8q0QSz-Z8llzcN56-_QiKuOvyio1OOxsRtFoXqu0G3iT2T27qat3WhLVEuLYk00OmSS1IdNpm8K8sG4JN9RIm2mTKcbLtc2o2vfCF2ubeXzk49OsGrXt_KYDCngOyCwZK-s3fqawWswzk.jpg,https://qcloud.dpfile.com/pc/IOf6VX3qaBgFXFVgp75w-KKJmWZjFc8GXDU8g9bQC6YGCpAmG00QbfT4vCCBj7njuzFvxlbkWx5uwqY2qcjixFEuLYk00OmSS1IdNpm8K8sG4JN9RIm2mTKcbLtc2o2vmIU_8ZGOT1OjpJmLxG6urQ.jpg")
+                .setArea("大关")
+                .setAddress("金华路锦昌文华苑29号")
+                .setX(120.149192)
+                .setY(30.316078)
+                .setAvgPrice(80L)
+                .setSold(4215)
+                .setComments(3035)
+                .setScore(37)
+                .setOpenHours("10:00-22:00")
+                .setCreateTime(LocalDateTime.now())
+                .setUpdateTime(LocalDateTime.now());
+        blog = new Blog()
+                .setId(4L)
+                .setShopId(4L)
+                .setUserId(2L)
+                .setTitle("无尽浪漫的夜晚丨在万花丛中摇晃着红酒杯🍷品战斧牛排🥩")
+                .setImages("/imgs/blogs/7/14/4771fefb-1a87-4252-816c-9f7ec41ffa4a.jpg,/imgs/blogs/4/10/2f07e3c9-ddce-482d-9ea7-c21450f8d7cd.jpg")
+                .setContent("生活就是一半烟火·一半诗意<br/>手执烟火谋生活·心怀诗意以谋爱·<br/>当然<br/>\\r\\n男朋友给不了的浪漫要学会自己给🍒<br/>\\n无法重来的一生·尽量快乐.<br/><br/>🏰「小筑里·神秘浪漫花园餐厅」🏰<br/><br/>\\n💯这是一家最最最美花园的西餐厅·到处都是花餐桌上是花前台是花  美好无处不在\\n品一口葡萄酒，维亚红酒马瑟兰·微醺上头工作的疲惫消失无际·生如此多娇🍃<br/><br/>📍地址:延安路200号(家乐福面)<br/><br/>🚌交通:地铁①号线定安路B口出右转过下通道右转就到啦～<br/><br/>--------------🥣菜品详情🥣---------------<br/><br/>「战斧牛排]<br/>\\n超大一块战斧牛排经过火焰的炙烤发出阵阵香，外焦里嫩让人垂涎欲滴，切开牛排的那一刻，牛排的汁水顺势流了出来，分熟的牛排肉质软，简直细嫩到犯规，一刻都等不了要放入嘴里咀嚼～<br/><br/>")
+                .setLiked(1)
+                .setComments(104)
+                .setCreateTime(LocalDateTime.now())
+                .setUpdateTime(LocalDateTime.now());
+        logicalShop = new RedisData();
+        logicalShop.setData(shop);
+        logicalShop.setExpireTime(LocalDateTime.now().plusSeconds(30));
+
+        shopBytes = codec.encode(shop);
+        blogBytes = codec.encode(blog);
+        logicalShopBytes = codec.encode(logicalShop);
+        legacyLogicalShopJson = JSONUtil.toJsonStr(logicalShop);
+        System.out.printf("%n%s: shop=%d bytes, blog=%d bytes, logical shop=%d bytes%n",
+                codecName, shopBytes.length, blogBytes.length, logicalShopBytes.length);
+    }
+
+    @Benchmark
+    public byte[] encodeShop() {
+        return codec.encode(shop);
+    }
+
+    @Benchmark
+    public Shop decodeShop() {
+        return codec.decode(shopBytes, Shop.class);
+    }
+
+    @Benchmark
+    public byte[] encodeBlog() {
+        return codec.encode(blog);
+    }
+
+    @Benchmark
+    public Blog decodeBlog() {
+        return codec.decode(blogBytes, Blog.class);
+    }
+
+    @Benchmark
+    public RedisData decodeLogicalShop() {
+        return codec.decodeLogical(logicalShopBytes, Shop.class);
+    }
+
+    /***
+     * 改造之前的逻辑过期数据读取方式：先转为RedisData，再把JSONObject转为Shop
+     */
+    @Benchmark
+    public Shop decodeLogicalShopLegacy() {
+        RedisData redisData = JSONUtil.toBean(
+                new String(legacyLogicalShopJson.getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8), RedisData.class);
+        return JSONUtil.toBean((JSONObject) redisData.getData(), Shop.class);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(CacheCodecBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
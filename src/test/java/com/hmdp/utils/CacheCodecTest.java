@@ -0,0 +1,114 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/***
+ * 序列化方式的往返测试，不需要redis和数据库
+ */
+class CacheCodecTest {
+
+    private static Shop shop(String images) {
+        return new Shop()
+                .setId(1L)
+                .setName("103茶餐厅")
+                .setTypeId(1L)
+                .setImages(images)
+                .setArea("大关")
+                .setAddress("金华路锦昌文华苑29号")
+                .setX(120.149192)
+                .setY(30.316078)
+                .setAvgPrice(80L)
+                .setSold(4215)
+                .setComments(3035)
+                .setScore(37)
+                .setOpenHours("10:00-22:00")
+                .setCreateTime(LocalDateTime.of(2022, 1, 1, 12, 0))
+                .setUpdateTime(LocalDateTime.of(2022, 1, 2, 12, 0));
+    }
+
+    /***
+     * 超过压缩阈值的数据
+     */
+    private static Shop largeShop() {
+        StringBuilder images = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            images.append("https://qcloud.dpfile.com/pc/").append(i).append(".jpg,");
+        }
+        return shop(images.toString());
+    }
+
+    @Test
+    void roundTrip() {
+        for (CacheCodec codec : new CacheCodec[]{CacheCodecs.JSON, CacheCodecs.BINARY, CacheCodecs.DEFLATE}) {
+            for (Shop shop : new Shop[]{shop("a.jpg"), largeShop()}) {
+                byte[] bytes = codec.encode(shop);
+                // 压缩方式在数据很小时写成二进制格式，按格式标识找到的序列化方式也要能读出来
+                assertNotNull(CacheCodecs.detect(bytes), codec.getClass().getSimpleName());
+                Shop decoded = codec.decode(bytes, Shop.class);
+                assertEquals(shop.getId(), decoded.getId());
+                assertEquals(shop.getName(), decoded.getName());
+                assertEquals(shop.getImages(), decoded.getImages());
+                assertEquals(shop.getX(), decoded.getX());
+                assertEquals(shop.getUpdateTime(), decoded.getUpdateTime());
+            }
+        }
+    }
+
+    @Test
+    void logicalRoundTrip() {
+        RedisData redisData = new RedisData();
+        redisData.setData(largeShop());
+        redisData.setExpireTime(LocalDateTime.of(2022, 1, 1, 12, 0, 30));
+        for (CacheCodec codec : new CacheCodec[]{CacheCodecs.JSON, CacheCodecs.BINARY, CacheCodecs.DEFLATE}) {
+            RedisData decoded = codec.decodeLogical(codec.encode(redisData), Shop.class);
+            assertEquals(redisData.getExpireTime(), decoded.getExpireTime());
+            assertEquals(largeShop().getImages(), ((Shop) decoded.getData()).getImages());
+        }
+    }
+
+    @Test
+    void deflateRejectsTruncatedPayload() {
+        byte[] bytes = CacheCodecs.DEFLATE.encode(largeShop());
+        assertEquals(DeflateCacheCodec.FORMAT, bytes[0]);
+        // 截断到不同的长度，都应该抛出异常而不是一直循环
+        for (int length : new int[]{bytes.length - 1, bytes.length / 2, 6, 5}) {
+            byte[] truncated = Arrays.copyOf(bytes, length);
+            assertThrows(IllegalArgumentException.class, () -> CacheCodecs.DEFLATE.decode(truncated, Shop.class),
+                    "length = " + length);
+        }
+        assertThrows(IllegalArgumentException.class,
+                () -> CacheCodecs.DEFLATE.decode(Arrays.copyOf(bytes, 3), Shop.class));
+    }
+
+    @Test
+    void deflateRejectsWrongLength() {
+        byte[] bytes = CacheCodecs.DEFLATE.encode(largeShop());
+        // 头部记录的原始长度比实际解压出来的长
+        byte[] corrupted = bytes.clone();
+        corrupted[4]++;
+        assertThrows(IllegalArgumentException.class, () -> CacheCodecs.DEFLATE.decode(corrupted, Shop.class));
+
+        // 头部记录了超大的长度，分配数组之前就要拒绝
+        byte[] huge = bytes.clone();
+        huge[1] = 0x7F;
+        huge[2] = (byte) 0xFF;
+        huge[3] = (byte) 0xFF;
+        huge[4] = (byte) 0xFF;
+        assertThrows(IllegalArgumentException.class, () -> CacheCodecs.DEFLATE.decode(huge, Shop.class));
+
+        // 没有超过上限，但是超过了deflate的最大压缩比
+        byte[] inflated = bytes.clone();
+        int length = Math.min(DeflateCacheCodec.MAX_LENGTH, (bytes.length - 5) * DeflateCacheCodec.MAX_RATIO + 1);
+        inflated[1] = (byte) (length >>> 24);
+        inflated[2] = (byte) (length >>> 16);
+        inflated[3] = (byte) (length >>> 8);
+        inflated[4] = (byte) length;
+        assertThrows(IllegalArgumentException.class, () -> CacheCodecs.DEFLATE.decode(inflated, Shop.class));
+    }
+}
@@ -0,0 +1,136 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/***
+ * 环形队列的申请、发布和批量取出测试，不需要redis
+ */
+class RingBufferTest {
+
+    @Test
+    void rejectsWhenFullAndReusesDrainedSlots() throws InterruptedException {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        RingBuffer<Integer> buffer = new RingBuffer<>(4, registry, "test");
+        for (int i = 0; i < 4; i++) {
+            long sequence = buffer.tryNext();
+            assertEquals(i, sequence);
+            buffer.publish(sequence, i);
+        }
+        // 队列已满
+        assertEquals(-1, buffer.tryNext());
+        assertEquals(4, buffer.size());
+        assertEquals(1.0, registry.counter("test.rejected").count());
+
+        List<Integer> out = new ArrayList<>();
+        assertEquals(4, buffer.drainTo(out, 10, 0, TimeUnit.MILLISECONDS));
+        assertEquals(Arrays.asList(0, 1, 2, 3), out);
+        assertEquals(0, buffer.size());
+        // 取出之后槽位可以重新申请，序号继续递增
+        assertEquals(4, buffer.tryNext());
+    }
+
+    @Test
+    void drainsInSequenceOrderAndWaitsForUnpublished() throws InterruptedException {
+        RingBuffer<String> buffer = new RingBuffer<>(8, null, "test");
+        long first = buffer.tryNext();
+        long second = buffer.tryNext();
+        // 后申请的先发布，前面的序号没有发布之前不能取出
+        buffer.publish(second, "b");
+        List<String> out = new ArrayList<>();
+        assertEquals(0, buffer.drainTo(out, 10, 1, TimeUnit.MILLISECONDS));
+        assertTrue(out.isEmpty());
+
+        buffer.publish(first, "a");
+        assertEquals(2, buffer.drainTo(out, 10, 0, TimeUnit.MILLISECONDS));
+        assertEquals(Arrays.asList("a", "b"), out);
+    }
+
+    @Test
+    void skipsAbandonedSlotsAndRespectsMax() throws InterruptedException {
+        RingBuffer<String> buffer = new RingBuffer<>(8, null, "test");
+        buffer.publish(buffer.tryNext(), "a");
+        // 放弃的槽位发布null
+        buffer.publish(buffer.tryNext(), null);
+        buffer.publish(buffer.tryNext(), "c");
+
+        List<String> out = new ArrayList<>();
+        assertEquals(2, buffer.drainTo(out, 2, 0, TimeUnit.MILLISECONDS));
+        assertEquals(Arrays.asList("a"), out);
+        assertEquals(1, buffer.drainTo(out, 2, 0, TimeUnit.MILLISECONDS));
+        assertEquals(Arrays.asList("a", "c"), out);
+    }
+
+    @Test
+    void publishWakesParkedConsumer() throws Exception {
+        RingBuffer<String> buffer = new RingBuffer<>(8, null, "test");
+        ExecutorService es = Executors.newSingleThreadExecutor();
+        try {
+            List<String> out = new ArrayList<>();
+            // 消费者等待10秒，发布之后应该立即被唤醒，而不是等到超时
+            long begin = System.nanoTime();
+            Future<Integer> drained = es.submit(() -> buffer.drainTo(out, 10, 10, TimeUnit.SECONDS));
+            Thread.sleep(100);
+            buffer.publish(buffer.tryNext(), "a");
+            assertEquals(1, drained.get(5, TimeUnit.SECONDS));
+            assertTrue(System.nanoTime() - begin < TimeUnit.SECONDS.toNanos(5));
+            assertEquals(Arrays.asList("a"), out);
+        } finally {
+            es.shutdownNow();
+        }
+    }
+
+    @Test
+    void multipleProducersSingleConsumer() throws InterruptedException {
+        int producers = 4;
+        int perProducer = 10000;
+        RingBuffer<Integer> buffer = new RingBuffer<>(64, null, "test");
+        ExecutorService es = Executors.newFixedThreadPool(producers);
+        CountDownLatch latch = new CountDownLatch(producers);
+        for (int p = 0; p < producers; p++) {
+            int producer = p;
+            es.submit(() -> {
+                try {
+                    for (int i = 0; i < perProducer; i++) {
+                        long sequence;
+                        // 队列已满时等待消费者
+                        while ((sequence = buffer.tryNext()) < 0) {
+                            Thread.yield();
+                        }
+                        buffer.publish(sequence, producer * perProducer + i);
+                    }
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+
+        Set<Integer> received = new HashSet<>();
+        List<Integer> out = new ArrayList<>();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (received.size() < producers * perProducer && System.nanoTime() < deadline) {
+            out.clear();
+            buffer.drainTo(out, 32, 10, TimeUnit.MILLISECONDS);
+            for (Integer value : out) {
+                assertTrue(received.add(value), "重复取出: " + value);
+            }
+        }
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+        es.shutdown();
+        assertEquals(producers * perProducer, received.size());
+        assertEquals(0, buffer.size());
+    }
+}
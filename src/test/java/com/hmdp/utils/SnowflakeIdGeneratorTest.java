@@ -0,0 +1,85 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.function.LongSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/***
+ * 雪花算法的序列号和时钟回拨测试，使用假的时钟，不需要redis
+ */
+class SnowflakeIdGeneratorTest {
+    private static final long BEGIN_TIMESTAMP = 1640995200000L;
+    private static final long NOW = BEGIN_TIMESTAMP + 1000;
+    private static final int WORKER_ID = 7;
+
+    /***
+     * 依次返回给定的时间，用完之后一直返回最后一个
+     */
+    private static LongSupplier clock(long... times) {
+        int[] index = {0};
+        return () -> times[Math.min(index[0]++, times.length - 1)];
+    }
+
+    private static long timestamp(long id) {
+        return ((id & ~(1L << 62)) >>> 22) + BEGIN_TIMESTAMP;
+    }
+
+    private static long worker(long id) {
+        return (id >>> 12) & 1023;
+    }
+
+    private static long sequence(long id) {
+        return id & 4095;
+    }
+
+    @Test
+    void sequenceOverflowWaitsForNextMillisecond() {
+        // 4096个id用完同一毫秒的序列号，第4097次先读到同一毫秒，等待时读到下一毫秒
+        long[] times = new long[4098];
+        Arrays.fill(times, NOW);
+        times[4097] = NOW + 1;
+        SnowflakeIdGenerator generator = new SnowflakeIdGenerator(WORKER_ID, Long.MAX_VALUE, clock(times));
+
+        long previous = 0;
+        for (int i = 0; i < 4096; i++) {
+            long id = generator.nextId("order");
+            assertEquals(NOW, timestamp(id));
+            assertEquals(WORKER_ID, worker(id));
+            assertEquals(i, sequence(id));
+            assertTrue(id > previous);
+            previous = id;
+        }
+        long id = generator.nextId("order");
+        assertEquals(NOW + 1, timestamp(id));
+        assertEquals(0, sequence(id));
+        assertTrue(id > previous);
+    }
+
+    @Test
+    void smallClockRollbackWaitsForClockToCatchUp() {
+        // 回拨3毫秒，等待时钟回到上次的时间
+        SnowflakeIdGenerator generator = new SnowflakeIdGenerator(WORKER_ID, Long.MAX_VALUE,
+                clock(NOW, NOW - 3, NOW - 2, NOW - 1, NOW, NOW + 1));
+        long first = generator.nextId("order");
+        long second = generator.nextId("order");
+        assertEquals(NOW, timestamp(second));
+        assertEquals(1, sequence(second));
+        assertTrue(second > first);
+    }
+
+    @Test
+    void largeClockRollbackIsRejected() {
+        SnowflakeIdGenerator generator = new SnowflakeIdGenerator(WORKER_ID, Long.MAX_VALUE, clock(NOW, NOW - 10));
+        generator.nextId("order");
+        assertThrows(IllegalStateException.class, () -> generator.nextId("order"));
+    }
+
+    @Test
+    void expiredLeaseIsRejected() {
+        SnowflakeIdGenerator generator = new SnowflakeIdGenerator(WORKER_ID, NOW, clock(NOW));
+        assertThrows(IllegalStateException.class, () -> generator.nextId("order"));
+    }
+}